@@ -16,10 +16,12 @@
  */
 package org.web.online.cloudwatch.tomcat.valve;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
+import org.apache.catalina.Context;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
@@ -56,6 +58,161 @@ public class CloudWatchValve extends ValveBase {
      */
     private String namespace = "CloudWatchValve";
 
+    /**
+     * The number of idle periods between zero value heartbeats. Default 1
+     */
+    private int heartbeatPeriods = 1;
+
+    /**
+     * The maximum number of idle periods between zero value heartbeats. The
+     * number of idle periods between heartbeats doubles after each heartbeat
+     * until it reaches this value. Default 1
+     */
+    private int maxHeartbeatPeriods = 1;
+
+    /**
+     * Comma separated decoded URI prefixes of requests to aggregate. Default
+     * null, aggregating all requests not excluded
+     */
+    private String includePaths;
+
+    /**
+     * Comma separated extensions of requests to aggregate. Default null
+     */
+    private String includeExtensions;
+
+    /**
+     * Comma separated methods of requests to aggregate. Default null
+     */
+    private String includeMethods;
+
+    /**
+     * Comma separated User-Agent prefixes of requests to aggregate. Default null
+     */
+    private String includeUserAgents;
+
+    /**
+     * Comma separated decoded URI prefixes of requests not to aggregate.
+     * Default null
+     */
+    private String excludePaths;
+
+    /**
+     * Comma separated extensions of requests not to aggregate. Default null
+     */
+    private String excludeExtensions;
+
+    /**
+     * Comma separated methods of requests not to aggregate. Default null
+     */
+    private String excludeMethods;
+
+    /**
+     * Comma separated User-Agent prefixes of requests not to aggregate.
+     * Default null
+     */
+    private String excludeUserAgents;
+
+    /**
+     * Whether to push the count of requests not aggregated as the
+     * ExcludedRequests metric. Default false
+     */
+    private boolean countExcluded = false;
+
+    /**
+     * Filter deciding which requests are aggregated
+     */
+    private RequestFilter requestFilter;
+
+    /**
+     * Counter of requests not aggregated, if countExcluded
+     */
+    private CountCollector excludedCollector;
+
+    /**
+     * The number of top clients to push ClientRequestShare and
+     * ClientElapsedTime metrics for. Default 0, disabled
+     */
+    private int heavyHitters = 0;
+
+    /**
+     * The request header identifying the client, such as X-Forwarded-For or
+     * an API key header. Default null, using the remote address
+     */
+    private String heavyHitterHeader;
+
+    /**
+     * Whether to push a hash of the heavyHitterHeader value rather than the
+     * value itself, such as for API keys. Default false
+     */
+    private boolean heavyHitterHashHeader = false;
+
+    /**
+     * The minimum number of requests in a period for a client to be pushed.
+     * Default 100
+     */
+    private long heavyHitterMinimumCount = HeavyHitterCollector.DEFAULT_MINIMUM_COUNT;
+
+    /**
+     * The minimum percent of the requests in a period for a client to be
+     * pushed. Default 1
+     */
+    private double heavyHitterMinimumShare = HeavyHitterCollector.DEFAULT_MINIMUM_SHARE;
+
+    /**
+     * Collector of the top clients, if heavyHitters is greater than 0
+     */
+    private HeavyHitterCollector heavyHitterCollector;
+
+    /**
+     * Decaying request rates and ElapsedTime averages for local consumers
+     */
+    private LocalStatistics localStatistics;
+
+    /**
+     * The file to spool data that could not be sent to Cloud Watch to,
+     * relative to CATALINA_BASE if not absolute. Default null, disabled
+     */
+    private String spoolFile;
+
+    /**
+     * The size of the spool file in bytes. Default 1048576
+     */
+    private int spoolSize = MetricSpool.DEFAULT_SIZE;
+
+    /**
+     * Spool of data that could not be sent, if spoolFile is set
+     */
+    private MetricSpool spool;
+
+    /**
+     * The decoded URI (including the context path) to answer GET and HEAD
+     * requests for with a text exposition of the current metrics, without
+     * authentication. Default null, disabled
+     */
+    private String metricsPath;
+
+    /**
+     * The minimum time in milliseconds between renders of the metrics
+     * text. Default 1000
+     */
+    private long scrapeInterval = 1000;
+
+    /**
+     * Histogram of ElapsedTime, if metricsPath is set
+     */
+    private ElapsedTimeHistogram histogram;
+
+    /**
+     * Renderer of the metrics text, if metricsPath is set
+     */
+    private MetricsEndpoint metricsEndpoint;
+
+    /**
+     * Whether to push session metrics for each Context. Default false
+     */
+    private boolean sessionMetrics = false;
+
     /**
      * A single executor for periodic execution
      */
@@ -96,7 +253,75 @@ public class CloudWatchValve extends ValveBase {
                     + minimumMinutes + " minutes");
         }
 
-        aggregator = new ElapsedTimeAggregator(namespace);
+        if (heartbeatPeriods < 1) {
+            throw new LifecycleException("heartbeatPeriods ("
+                    + heartbeatPeriods + ") must be at least 1");
+        }
+
+        if (maxHeartbeatPeriods < heartbeatPeriods) {
+            throw new LifecycleException("maxHeartbeatPeriods ("
+                    + maxHeartbeatPeriods + ") must be at least heartbeatPeriods ("
+                    + heartbeatPeriods + ")");
+        }
+
+        if (heavyHitters < 0) {
+            throw new LifecycleException("heavyHitters ("
+                    + heavyHitters + ") must not be negative");
+        }
+
+        aggregator = createAggregator(namespace);
+        aggregator.setPublishPolicy(new PublishPolicy(heartbeatPeriods, maxHeartbeatPeriods));
+
+        requestFilter = new RequestFilter(
+                new RequestFilter.Rules(includePaths, includeExtensions, includeMethods, includeUserAgents),
+                new RequestFilter.Rules(excludePaths, excludeExtensions, excludeMethods, excludeUserAgents));
+
+        excludedCollector = null;
+        if (countExcluded) {
+            excludedCollector = new CountCollector("ExcludedRequests");
+            aggregator.addCollector(excludedCollector);
+        }
+
+        heavyHitterCollector = null;
+        if (heavyHitters > 0) {
+            heavyHitterCollector = new HeavyHitterCollector(heavyHitters,
+                    heavyHitterMinimumCount, heavyHitterMinimumShare);
+            aggregator.addCollector(heavyHitterCollector);
+        }
+
+        if (sessionMetrics) {
+            aggregator.addCollector(new SessionCollector(getContainer()));
+        }
+
+        spool = null;
+        if (spoolFile != null) {
+            File file = new File(spoolFile);
+            if (!file.isAbsolute()) {
+                file = new File(System.getProperty("catalina.base"), spoolFile);
+            }
+            try {
+                spool = new MetricSpool(file, spoolSize);
+            } catch (IOException ex) {
+                throw new LifecycleException("unable to open spool file " + file, ex);
+            } catch (IllegalArgumentException ex) {
+                throw new LifecycleException(ex.getMessage(), ex);
+            }
+            aggregator.setSpool(spool);
+        }
+
+        localStatistics = new LocalStatistics();
+        if (getContainer() instanceof Context) {
+            ((Context) getContainer()).getServletContext().setAttribute(
+                    LocalStatistics.ATTRIBUTE, localStatistics);
+        }
+
+        histogram = null;
+        metricsEndpoint = null;
+        if (metricsPath != null) {
+            histogram = new ElapsedTimeHistogram();
+            metricsEndpoint = new MetricsEndpoint(scrapeInterval, localStatistics,
+                    histogram, aggregator.getPublishPolicy(), excludedCollector);
+        }
 
         executor = new ScheduledThreadPoolExecutor(1);
         executor.scheduleAtFixedRate(aggregator, initialDelay, period, timeUnit);
@@ -107,6 +332,16 @@ public class CloudWatchValve extends ValveBase {
     }
 
 
+    /**
+     * Create the aggregator that collects statistics and pushes them to
+     * Cloud Watch.
+     * @param namespace namespace value to use to push data to CloudWatch
+     * @return the aggregator
+     */
+    protected ElapsedTimeAggregator createAggregator(String namespace) {
+        return new ElapsedTimeAggregator(namespace);
+    }
+
     /**
      * Stop this component.
      * @throws LifecycleException 
@@ -117,6 +352,22 @@ public class CloudWatchValve extends ValveBase {
         if (executor != null) {
             executor.shutdown();
         }
+        if (spool != null) {
+            // keep the final period for the next start rather than pushing
+            // it while stopping, both wait for a running push to finish
+            aggregator.spool();
+            aggregator.setSpool(null);
+            try {
+                spool.close();
+            } catch (IOException ex) {
+                log.warn("unable to close spool", ex);
+            }
+            spool = null;
+        }
+        if (getContainer() instanceof Context) {
+            ((Context) getContainer()).getServletContext().removeAttribute(
+                    LocalStatistics.ATTRIBUTE);
+        }
     }
 
     /**
@@ -129,14 +380,49 @@ public class CloudWatchValve extends ValveBase {
     @Override
     public void invoke(Request rqst, Response rspns) throws IOException, ServletException {
 
+        // only scrapes are answered, other methods reach the application
+        if (metricsEndpoint != null && rqst.getCoyoteRequest().decodedURI().equals(metricsPath)
+                && (rqst.getCoyoteRequest().method().equals("GET")
+                || rqst.getCoyoteRequest().method().equals("HEAD"))) {
+            byte[] metrics = metricsEndpoint.render();
+            rspns.setContentType(MetricsEndpoint.CONTENT_TYPE);
+            rspns.setContentLength(metrics.length);
+            rspns.getOutputStream().write(metrics);
+            return;
+        }
+
+        boolean accepted = requestFilter.accept(rqst.getCoyoteRequest());
+
         Valve nextValve = getNext();
         if (nextValve != null) {
             nextValve.invoke(rqst, rspns);
         }
 
+        if (!accepted) {
+            if (excludedCollector != null) {
+                excludedCollector.increment();
+            }
+            return;
+        }
+
         long time = System.currentTimeMillis() - rqst.getCoyoteRequest().getStartTime();
 
         aggregator.aggregate(time);
+        localStatistics.update(time);
+        if (histogram != null) {
+            histogram.update(time);
+        }
+
+        if (heavyHitterCollector != null) {
+            String client = heavyHitterHeader == null ? null
+                    : HeavyHitterCollector.client(rqst.getHeader(heavyHitterHeader));
+            if (client != null) {
+                heavyHitterCollector.record(client, heavyHitterHashHeader, time);
+            } else {
+                String remoteAddr = rqst.getRemoteAddr();
+                heavyHitterCollector.record(remoteAddr == null ? "unknown" : remoteAddr, false, time);
+            }
+        }
     }
     
     /**
@@ -171,4 +457,239 @@ public class CloudWatchValve extends ValveBase {
     public void setNamespace(String namespace) {
         this.namespace = namespace;
     }
+
+    /**
+     * Set the number of idle periods between zero value heartbeats
+     * @param heartbeatPeriods number of idle periods
+     */
+    public void setHeartbeatPeriods(int heartbeatPeriods) {
+        this.heartbeatPeriods = heartbeatPeriods;
+    }
+
+    /**
+     * Set the maximum number of idle periods between zero value heartbeats
+     * @param maxHeartbeatPeriods maximum number of idle periods
+     */
+    public void setMaxHeartbeatPeriods(int maxHeartbeatPeriods) {
+        this.maxHeartbeatPeriods = maxHeartbeatPeriods;
+    }
+
+    /**
+     * Set the decoded URI prefixes of requests to aggregate
+     * @param includePaths comma separated decoded URI prefixes
+     */
+    public void setIncludePaths(String includePaths) {
+        this.includePaths = includePaths;
+    }
+
+    /**
+     * Set the extensions of requests to aggregate
+     * @param includeExtensions comma separated extensions
+     */
+    public void setIncludeExtensions(String includeExtensions) {
+        this.includeExtensions = includeExtensions;
+    }
+
+    /**
+     * Set the methods of requests to aggregate
+     * @param includeMethods comma separated methods
+     */
+    public void setIncludeMethods(String includeMethods) {
+        this.includeMethods = includeMethods;
+    }
+
+    /**
+     * Set the User-Agent prefixes of requests to aggregate
+     * @param includeUserAgents comma separated User-Agent prefixes
+     */
+    public void setIncludeUserAgents(String includeUserAgents) {
+        this.includeUserAgents = includeUserAgents;
+    }
+
+    /**
+     * Set the decoded URI prefixes of requests not to aggregate
+     * @param excludePaths comma separated decoded URI prefixes
+     */
+    public void setExcludePaths(String excludePaths) {
+        this.excludePaths = excludePaths;
+    }
+
+    /**
+     * Set the extensions of requests not to aggregate
+     * @param excludeExtensions comma separated extensions
+     */
+    public void setExcludeExtensions(String excludeExtensions) {
+        this.excludeExtensions = excludeExtensions;
+    }
+
+    /**
+     * Set the methods of requests not to aggregate
+     * @param excludeMethods comma separated methods
+     */
+    public void setExcludeMethods(String excludeMethods) {
+        this.excludeMethods = excludeMethods;
+    }
+
+    /**
+     * Set the User-Agent prefixes of requests not to aggregate
+     * @param excludeUserAgents comma separated User-Agent prefixes
+     */
+    public void setExcludeUserAgents(String excludeUserAgents) {
+        this.excludeUserAgents = excludeUserAgents;
+    }
+
+    /**
+     * Set whether to push the count of requests not aggregated
+     * @param countExcluded true to push the ExcludedRequests metric
+     */
+    public void setCountExcluded(boolean countExcluded) {
+        this.countExcluded = countExcluded;
+    }
+
+    /**
+     * Set the number of top clients to push metrics for
+     * @param heavyHitters number of top clients, 0 to disable
+     */
+    public void setHeavyHitters(int heavyHitters) {
+        this.heavyHitters = heavyHitters;
+    }
+
+    /**
+     * Set the request header identifying the client
+     * @param heavyHitterHeader header name, null to use the remote address
+     */
+    public void setHeavyHitterHeader(String heavyHitterHeader) {
+        this.heavyHitterHeader = heavyHitterHeader;
+    }
+
+    /**
+     * Set the file to spool data that could not be sent to Cloud Watch to
+     * @param spoolFile path of the spool file, relative to CATALINA_BASE if
+     * not absolute
+     */
+    public void setSpoolFile(String spoolFile) {
+        this.spoolFile = spoolFile;
+    }
+
+    /**
+     * Set the size of the spool file
+     * @param spoolSize size of the spool file in bytes
+     */
+    public void setSpoolSize(int spoolSize) {
+        this.spoolSize = spoolSize;
+    }
+
+    /**
+     * Set whether to push a hash of the heavyHitterHeader value
+     * @param heavyHitterHashHeader true to push a hash of the value
+     */
+    public void setHeavyHitterHashHeader(boolean heavyHitterHashHeader) {
+        this.heavyHitterHashHeader = heavyHitterHashHeader;
+    }
+
+    /**
+     * Set the minimum number of requests in a period for a client to be pushed
+     * @param heavyHitterMinimumCount minimum number of requests
+     */
+    public void setHeavyHitterMinimumCount(long heavyHitterMinimumCount) {
+        this.heavyHitterMinimumCount = heavyHitterMinimumCount;
+    }
+
+    /**
+     * Set the minimum percent of the requests in a period for a client to be
+     * pushed
+     * @param heavyHitterMinimumShare minimum percent of the requests
+     */
+    public void setHeavyHitterMinimumShare(double heavyHitterMinimumShare) {
+        this.heavyHitterMinimumShare = heavyHitterMinimumShare;
+    }
+
+    /**
+     * Set the decoded URI to answer with a text exposition of the metrics
+     * @param metricsPath decoded URI including the context path, such as
+     * /metrics
+     */
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * Set the minimum time between renders of the metrics text
+     * @param scrapeInterval time in milliseconds
+     */
+    public void setScrapeInterval(long scrapeInterval) {
+        this.scrapeInterval = scrapeInterval;
+    }
+
+    /**
+     * Set whether to push session metrics for each Context
+     * @param sessionMetrics true to push session metrics
+     */
+    public void setSessionMetrics(boolean sessionMetrics) {
+        this.sessionMetrics = sessionMetrics;
+    }
+
+    /**
+     * @return number of calls made to Cloud Watch since this component started
+     */
+    public long getPublishedCount() {
+        return aggregator == null ? 0 : aggregator.getPublishPolicy().getPublishedCount();
+    }
+
+    /**
+     * @return number of calls to Cloud Watch saved by suppressing idle periods
+     * since this component started
+     */
+    public long getSuppressedCount() {
+        return aggregator == null ? 0 : aggregator.getPublishPolicy().getSuppressedCount();
+    }
+
+    /**
+     * @return number of requests aggregated since this component started
+     */
+    public long getRequestCount() {
+        return localStatistics == null ? 0 : localStatistics.getCount();
+    }
+
+    /**
+     * @return requests per second averaged over the last minute
+     */
+    public double getOneMinuteRate() {
+        return localStatistics == null ? 0 : localStatistics.getOneMinuteRate();
+    }
+
+    /**
+     * @return requests per second averaged over the last 5 minutes
+     */
+    public double getFiveMinuteRate() {
+        return localStatistics == null ? 0 : localStatistics.getFiveMinuteRate();
+    }
+
+    /**
+     * @return requests per second averaged over the last 15 minutes
+     */
+    public double getFifteenMinuteRate() {
+        return localStatistics == null ? 0 : localStatistics.getFifteenMinuteRate();
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last minute
+     */
+    public double getOneMinuteElapsedTime() {
+        return localStatistics == null ? 0 : localStatistics.getOneMinuteElapsedTime();
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last 5 minutes
+     */
+    public double getFiveMinuteElapsedTime() {
+        return localStatistics == null ? 0 : localStatistics.getFiveMinuteElapsedTime();
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last 15 minutes
+     */
+    public double getFifteenMinuteElapsedTime() {
+        return localStatistics == null ? 0 : localStatistics.getFifteenMinuteElapsedTime();
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MetricCollector that counts events during each period and sends the
+ * count to Cloud Watch.
+ *
+ * The count never counts as activity, since the events counted (such as
+ * excluded health checks) arrive on otherwise idle instances and would keep
+ * the PublishPolicy from suppressing idle periods. The count of a suppressed
+ * period is carried into the next one, so heartbeats report every event
+ * since the last published period.
+ * @author web-online
+ */
+public class CountCollector implements MetricCollector {
+
+    /**
+     * name of the metric to push the count under
+     */
+    private final String metricName;
+
+    /**
+     * count of events in the current period
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * count of events in all periods
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * count of events collected for the last period, carried into the next
+     * period if the last one is suppressed
+     */
+    private long collected = 0;
+
+    /**
+     * Construct the instance.
+     * @param metricName name of the metric to push the count under
+     */
+    public CountCollector(String metricName) {
+        this.metricName = metricName;
+    }
+
+    /**
+     * Count an event in the current period.
+     */
+    public void increment() {
+        count.incrementAndGet();
+        total.incrementAndGet();
+    }
+
+    /**
+     * @return count of events in all periods
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Collect the count for the period that just ended.
+     * @param dimensions dimensions to push the count under
+     * @param metricData list to add the collected MetricDatum objects to
+     * @return false, the count is not activity
+     */
+    @Override
+    public boolean collect(List<Dimension> dimensions, List<MetricDatum> metricData) {
+        long value = count.getAndSet(0);
+        collected = value;
+        for (Dimension dimension : dimensions) {
+            metricData.add(new MetricDatum().
+                    withMetricName(metricName).
+                    withDimensions(dimension).
+                    withValue((double) value).
+                    withUnit(StandardUnit.Count));
+        }
+        return false;
+    }
+
+    /**
+     * Carry the count of the suppressed period into the next period, so
+     * that the next published period reports every event since the last
+     * published one.
+     */
+    @Override
+    public void suppressed() {
+        count.addAndGet(collected);
+        collected = 0;
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.web.online.cloudwatch.tomcat.valve;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
@@ -31,8 +33,14 @@ import com.amazonaws.services.ec2.model.DescribeTagsRequest;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.TagDescription;
 import com.amazonaws.util.EC2MetadataUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
@@ -45,6 +53,22 @@ public class ElapsedTimeAggregator implements Runnable {
 
     private static final Log log = LogFactory.getLog(ElapsedTimeAggregator.class);
 
+    /**
+     * Maximum number of MetricDatum in a single PutMetricDataRequest
+     */
+    static final int MAX_METRIC_DATA = 20;
+
+    /**
+     * Maximum age of data accepted by Cloud Watch
+     */
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(14);
+
+    /**
+     * error codes of PutMetricData rejecting the data itself
+     */
+    private static final Set<String> INVALID_ERROR_CODES = new HashSet<String>(Arrays.asList(
+            "InvalidParameterValue", "InvalidParameterCombination", "MissingParameter"));
+
     /**
      * Cloud Watch client
      */
@@ -65,6 +89,12 @@ public class ElapsedTimeAggregator implements Runnable {
      */
     private final Object lock = new Object();
 
+    /**
+     * lock object making run and spool mutually exclusive, separate from
+     * lock so that requests are not held up while sending
+     */
+    private final Object runLock = new Object();
+
     /**
      * minimum aggregate value
      */
@@ -90,6 +120,26 @@ public class ElapsedTimeAggregator implements Runnable {
      */
     private final Region region;
 
+    /**
+     * policy deciding whether idle periods are published
+     */
+    private PublishPolicy publishPolicy = new PublishPolicy();
+
+    /**
+     * dimensions that each metric is pushed under
+     */
+    private final List<Dimension> dimensions = new ArrayList<Dimension>();
+
+    /**
+     * collectors of additional metric data
+     */
+    private final List<MetricCollector> collectors = new CopyOnWriteArrayList<MetricCollector>();
+
+    /**
+     * spool of data that could not be sent, if any
+     */
+    private MetricSpool spool;
+
     /**
      * Construct the instance querying EC2 meta data to get the InstanceId
      * and querying the tags of this instance to get the
@@ -151,6 +201,7 @@ public class ElapsedTimeAggregator implements Runnable {
         Dimension instanceDimension =
                 new Dimension().withName("InstanceId").withValue(instanceId);
         StatisticSet statisticSet = new StatisticSet();
+        dimensions.add(instanceDimension);
 
         // set up the static MetricDatum and associate to the PutMetricDataRequest
         MetricDatum instanceMetricDatum = new MetricDatum().
@@ -177,6 +228,7 @@ public class ElapsedTimeAggregator implements Runnable {
         if (asgName != null) {
             Dimension asgDimension =
                     new Dimension().withName("AutoScalingGroupName").withValue(asgName);
+            dimensions.add(asgDimension);
             MetricDatum asgMetricDatum = new MetricDatum().
                     withMetricName(metricName).
                     withDimensions(asgDimension).
@@ -193,20 +245,87 @@ public class ElapsedTimeAggregator implements Runnable {
     }
 
     /**
-     * Collect the aggregated values (min, max, count, sum) into a
-     * StatisticSet and send the data to Cloud Watch
+     * Collect the data of the period that just ended and send it to Cloud
+     * Watch, preceded by any data in the spool. Data that cannot be sent
+     * because Cloud Watch is unreachable or refuses it for now is kept in
+     * the spool, if there is one, and sent on a later run.
      */
     @Override
     public void run() {
+        synchronized (runLock) {
+            try {
+                List<MetricDatum> spooled = spool == null ? new ArrayList<MetricDatum>() : spool.read();
+                // data too old for Cloud Watch is not sent, the positions
+                // in the spool of the data that is sent are kept to remove
+                // it once sent
+                List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+                List<Integer> positions = new ArrayList<Integer>();
+                long oldest = System.currentTimeMillis() - MAX_AGE;
+                for (int i = 0; i < spooled.size(); i++) {
+                    if (spooled.get(i).getTimestamp().getTime() >= oldest) {
+                        metricData.add(spooled.get(i));
+                        positions.add(i);
+                    }
+                }
+                int sending = metricData.size();
+
+                List<MetricDatum> collected = collect();
+                if (collected != null) {
+                    metricData.addAll(collected);
+                }
+
+                int sent = send(metricData);
+
+                if (spool != null) {
+                    int removed = sent < sending ? positions.get(sent) : spooled.size();
+                    if (removed > 0) {
+                        spool.remove(removed);
+                    }
+                    if (sent < metricData.size()) {
+                        spool.append(metricData.subList(Math.max(sent, sending), metricData.size()));
+                    }
+                }
+            } catch (Throwable t) {
+                // keep the schedule alive, an exception stops the executor
+                // from running later periods
+                log.error("unable to push metric data", t);
+            }
+        }
+    }
 
-        PutMetricDataRequest localPutMetricDataRequest = zeroValuePutMetricDataRequest;
-        MetricDatum metricDatum = localPutMetricDataRequest.getMetricData().get(0);
+    /**
+     * Collect the data of the current period and append it to the spool
+     * instead of sending it, to be sent by a later run. Used when stopping,
+     * waits for a run in progress to finish.
+     */
+    public void spool() {
+        synchronized (runLock) {
+            if (spool == null) {
+                return;
+            }
+            List<MetricDatum> collected = collect();
+            if (collected != null) {
+                spool.append(collected);
+            }
+        }
+    }
 
-        if (sampleCount > 0) {
-            localPutMetricDataRequest = putMetricDataRequest;
-            metricDatum = localPutMetricDataRequest.getMetricData().get(0);
-            StatisticSet statisticSet = metricDatum.getStatisticValues();
-            synchronized (lock) {
+    /**
+     * Collect the aggregated values (min, max, count, sum) into a
+     * StatisticSet and collect the data of any additional collectors, all
+     * with the current time as the timestamp. Periods without any samples
+     * or activity reported by the collectors are only collected if the
+     * PublishPolicy allows it.
+     * @return the collected data or null if the period is suppressed
+     */
+    private List<MetricDatum> collect() {
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        boolean active = false;
+
+        synchronized (lock) {
+            if (sampleCount > 0) {
+                StatisticSet statisticSet = putMetricDataRequest.getMetricData().get(0).getStatisticValues();
                 statisticSet.setMaximum(maximum);
                 statisticSet.setMinimum(minimum);
                 statisticSet.setSampleCount(sampleCount);
@@ -216,16 +335,110 @@ public class ElapsedTimeAggregator implements Runnable {
                 maximum = Double.MIN_VALUE;
                 sampleCount = 0;
                 sum = 0;
+                active = true;
+            }
+        }
+
+        metricData.addAll(active ? putMetricDataRequest.getMetricData()
+                : zeroValuePutMetricDataRequest.getMetricData());
+
+        for (MetricCollector collector : collectors) {
+            active |= collector.collect(dimensions, metricData);
+        }
+
+        if (active) {
+            publishPolicy.active();
+        } else if (!publishPolicy.idle()) {
+            publishPolicy.suppressed((metricData.size() + MAX_METRIC_DATA - 1) / MAX_METRIC_DATA);
+            for (MetricCollector collector : collectors) {
+                collector.suppressed();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("suppressing idle " + metricData);
+            }
+            return null;
+        }
+
+        Date timestamp = new Date();
+        for (MetricDatum metricDatum : metricData) {
+            metricDatum.setTimestamp(timestamp);
+        }
+        return metricData;
+    }
+
+    /**
+     * Send data to Cloud Watch in batches, stopping at the first batch that
+     * fails for any reason other than the data being invalid, such as Cloud
+     * Watch being unreachable, throttling or refusing expired credentials.
+     * Batches that Cloud Watch rejects as invalid are dropped, since sending
+     * them again would fail again.
+     * @param metricData the data to send
+     * @return the number of MetricDatum sent or dropped
+     */
+    private int send(List<MetricDatum> metricData) {
+
+        // Cloud Watch accepts a limited number of MetricDatum per request
+        String namespace = putMetricDataRequest.getNamespace();
+        for (int i = 0; i < metricData.size(); i += MAX_METRIC_DATA) {
+            PutMetricDataRequest localPutMetricDataRequest = new PutMetricDataRequest().
+                    withNamespace(namespace).
+                    withMetricData(metricData.subList(i, Math.min(i + MAX_METRIC_DATA, metricData.size())));
+
+            if (log.isDebugEnabled()) {
+                log.debug("sending " + localPutMetricDataRequest);
+            }
+
+            try {
+                cloudWatchClient.putMetricData(localPutMetricDataRequest);
+                publishPolicy.published(1);
+            } catch (AmazonServiceException ex) {
+                if (ex.getErrorType() != AmazonServiceException.ErrorType.Client
+                        || !INVALID_ERROR_CODES.contains(ex.getErrorCode())) {
+                    log.warn("unable to send " + (metricData.size() - i) + " metric data", ex);
+                    return i;
+                }
+                log.error("dropping rejected " + localPutMetricDataRequest, ex);
+            } catch (AmazonClientException ex) {
+                log.warn("unable to send " + (metricData.size() - i) + " metric data", ex);
+                return i;
             }
         }
+        return metricData.size();
+    }
+
+    /**
+     * Add a collector of additional metric data to send to Cloud Watch
+     * each period.
+     * @param collector collector to add
+     */
+    public void addCollector(MetricCollector collector) {
+        collectors.add(collector);
+    }
 
-        metricDatum.setTimestamp(new Date());
+    /**
+     * Set the policy deciding whether idle periods are published.
+     * @param publishPolicy policy to use
+     */
+    public void setPublishPolicy(PublishPolicy publishPolicy) {
+        this.publishPolicy = publishPolicy;
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug("sending " + localPutMetricDataRequest);
+    /**
+     * Set the spool of data that could not be sent. Waits for a run in
+     * progress to finish, so that the previous spool can be closed.
+     * @param spool spool to use, or null to drop data that cannot be sent
+     */
+    public void setSpool(MetricSpool spool) {
+        synchronized (runLock) {
+            this.spool = spool;
         }
+    }
 
-        cloudWatchClient.putMetricData(localPutMetricDataRequest);
+    /**
+     * @return the policy deciding whether idle periods are published
+     */
+    public PublishPolicy getPublishPolicy() {
+        return publishPolicy;
     }
 
     /**
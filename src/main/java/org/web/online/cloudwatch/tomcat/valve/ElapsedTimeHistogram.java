@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A cumulative histogram of ElapsedTime values with fixed bucket bounds,
+ * updated without locking.
+ * @author web-online
+ */
+public class ElapsedTimeHistogram {
+
+    /**
+     * upper bounds in milliseconds of the buckets, with a final unbounded
+     * bucket after the last
+     */
+    private static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * number of values in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+    /**
+     * sum of all values
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Record an ElapsedTime value.
+     * @param value the elapsed time in milliseconds
+     */
+    public void update(long value) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sum.addAndGet(value);
+    }
+
+    /**
+     * @return number of buckets, including the final unbounded bucket
+     */
+    public int getBucketCount() {
+        return BOUNDS.length + 1;
+    }
+
+    /**
+     * @param bucket index of the bucket
+     * @return upper bound in milliseconds of the bucket, or Long.MAX_VALUE
+     * for the final unbounded bucket
+     */
+    public long getBound(int bucket) {
+        return bucket < BOUNDS.length ? BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param bucket index of the bucket
+     * @return number of values in the bucket
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return sum of all values in milliseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+}
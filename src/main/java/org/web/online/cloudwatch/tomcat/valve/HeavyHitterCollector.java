@@ -0,0 +1,393 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A MetricCollector that finds the clients making the most requests in each
+ * period and pushes their share of the requests (ClientRequestShare) and
+ * their ElapsedTime (ClientElapsedTime) under an additional Client dimension.
+ *
+ * Request counts are estimated with a count-min sketch of a fixed width and
+ * depth, each row indexed by a hash of the client seeded randomly per
+ * instance so clients cannot choose values that collide in every row. The
+ * top clients are tracked in a fixed size table, so memory use
+ * does not depend on the number of clients. A client's ElapsedTime is
+ * aggregated from the time it entered the table. Only clients with at least
+ * a minimum number of requests and a minimum share of the requests are
+ * pushed, so low volume clients do not each become a custom metric.
+ *
+ * Use client() to turn a header value into a valid Client dimension value.
+ * Secret clients, such as API keys, are recorded as is and only replaced
+ * with a hash of the value for the few top clients when they are pushed.
+ * @author web-online
+ */
+public class HeavyHitterCollector implements MetricCollector {
+
+    /**
+     * default number of counters in each row of the sketch
+     */
+    public static final int DEFAULT_WIDTH = 1024;
+
+    /**
+     * default number of rows of the sketch
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * default minimum number of requests in a period for a client to be pushed
+     */
+    public static final long DEFAULT_MINIMUM_COUNT = 100;
+
+    /**
+     * default minimum percent of the requests in a period for a client to be
+     * pushed
+     */
+    public static final double DEFAULT_MINIMUM_SHARE = 1;
+
+    /**
+     * maximum length of a Cloud Watch dimension value
+     */
+    static final int MAX_CLIENT_LENGTH = 255;
+
+    /**
+     * minimum number of requests in a period for a client to be pushed
+     */
+    private final long minimumCount;
+
+    /**
+     * minimum percent of the requests in a period for a client to be pushed
+     */
+    private final double minimumShare;
+
+    /**
+     * lock object for synchronization
+     */
+    private final Object lock = new Object();
+
+    /**
+     * seed of the hash of clients
+     */
+    private final long seed = new Random().nextLong();
+
+    /**
+     * count-min sketch counters, one row per hash function
+     */
+    private final long[][] sketch;
+
+    /**
+     * number of requests in the current period
+     */
+    private long total = 0;
+
+    /**
+     * number of top clients in the table
+     */
+    private int size = 0;
+
+    /**
+     * top clients
+     */
+    private final String[] clients;
+
+    /**
+     * whether each top client is a secret to push a hash of
+     */
+    private final boolean[] secrets;
+
+    /**
+     * estimated request counts of the top clients
+     */
+    private final long[] estimates;
+
+    /**
+     * number of ElapsedTime values sampled for the top clients
+     */
+    private final long[] sampleCounts;
+
+    /**
+     * sum of ElapsedTime values for the top clients
+     */
+    private final double[] sums;
+
+    /**
+     * minimum ElapsedTime values for the top clients
+     */
+    private final double[] minimums;
+
+    /**
+     * maximum ElapsedTime values for the top clients
+     */
+    private final double[] maximums;
+
+    /**
+     * Construct the instance with the default sketch size.
+     * @param topK number of top clients to push
+     * @param minimumCount minimum number of requests in a period for a
+     * client to be pushed
+     * @param minimumShare minimum percent of the requests in a period for a
+     * client to be pushed
+     */
+    public HeavyHitterCollector(int topK, long minimumCount, double minimumShare) {
+        this(topK, minimumCount, minimumShare, DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Construct the instance.
+     * @param topK number of top clients to push
+     * @param minimumCount minimum number of requests in a period for a
+     * client to be pushed
+     * @param minimumShare minimum percent of the requests in a period for a
+     * client to be pushed
+     * @param width number of counters in each row of the sketch
+     * @param depth number of rows of the sketch
+     */
+    public HeavyHitterCollector(int topK, long minimumCount, double minimumShare, int width, int depth) {
+        this.minimumCount = minimumCount;
+        this.minimumShare = minimumShare;
+        sketch = new long[depth][width];
+        clients = new String[topK];
+        secrets = new boolean[topK];
+        estimates = new long[topK];
+        sampleCounts = new long[topK];
+        sums = new double[topK];
+        minimums = new double[topK];
+        maximums = new double[topK];
+    }
+
+    /**
+     * Record a request made by a client.
+     * @param client the client making the request
+     * @param value the elapsed time of the request
+     */
+    public void record(String client, double value) {
+        record(client, false, value);
+    }
+
+    /**
+     * Record a request made by a client.
+     * @param client the client making the request
+     * @param secret true to push a hash of the client rather than the
+     * client itself, such as for API keys
+     * @param value the elapsed time of the request
+     */
+    public void record(String client, boolean secret, double value) {
+        long hash = hash(client, seed);
+        synchronized (lock) {
+            total++;
+
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < sketch.length; row++) {
+                long[] counters = sketch[row];
+                int index = index(hash, row, counters.length);
+                long count = ++counters[index];
+                if (count < estimate) {
+                    estimate = count;
+                }
+            }
+
+            int slot = -1;
+            int minimumSlot = -1;
+            for (int i = 0; i < size; i++) {
+                if (clients[i].equals(client)) {
+                    slot = i;
+                    break;
+                }
+                if (minimumSlot < 0 || estimates[i] < estimates[minimumSlot]) {
+                    minimumSlot = i;
+                }
+            }
+
+            if (slot < 0) {
+                if (size < clients.length) {
+                    slot = size++;
+                } else if (minimumSlot >= 0 && estimate > estimates[minimumSlot]) {
+                    slot = minimumSlot;
+                } else {
+                    return;
+                }
+                clients[slot] = client;
+                secrets[slot] = secret;
+                sampleCounts[slot] = 0;
+                sums[slot] = 0;
+                minimums[slot] = Double.MAX_VALUE;
+                maximums[slot] = -Double.MAX_VALUE;
+            }
+
+            estimates[slot] = estimate;
+            secrets[slot] |= secret;
+            sampleCounts[slot]++;
+            sums[slot] += value;
+            if (value < minimums[slot]) {
+                minimums[slot] = value;
+            }
+            if (value > maximums[slot]) {
+                maximums[slot] = value;
+            }
+        }
+    }
+
+    /**
+     * Collect the share of requests and the ElapsedTime of the top clients
+     * for the period that just ended.
+     * @param dimensions dimensions to push the metrics under, each combined
+     * with a Client dimension
+     * @param metricData list to add the collected MetricDatum objects to
+     * @return true if there were any requests
+     */
+    @Override
+    public boolean collect(List<Dimension> dimensions, List<MetricDatum> metricData) {
+        synchronized (lock) {
+            for (int i = 0; i < size; i++) {
+                double share = 100d * estimates[i] / total;
+                if (estimates[i] < minimumCount || share < minimumShare) {
+                    continue;
+                }
+                Dimension clientDimension = new Dimension().withName("Client").
+                        withValue(secrets[i] ? digest(clients[i]) : clients[i]);
+                StatisticSet statisticSet = new StatisticSet().
+                        withSampleCount((double) sampleCounts[i]).
+                        withSum(sums[i]).
+                        withMinimum(minimums[i]).
+                        withMaximum(maximums[i]);
+                for (Dimension dimension : dimensions) {
+                    metricData.add(new MetricDatum().
+                            withMetricName("ClientRequestShare").
+                            withDimensions(dimension, clientDimension).
+                            withValue(share).
+                            withUnit(StandardUnit.Percent));
+                    metricData.add(new MetricDatum().
+                            withMetricName("ClientElapsedTime").
+                            withDimensions(dimension, clientDimension).
+                            withStatisticValues(statisticSet).
+                            withUnit(StandardUnit.Milliseconds));
+                }
+            }
+
+            boolean active = total > 0;
+            for (long[] counters : sketch) {
+                Arrays.fill(counters, 0);
+            }
+            Arrays.fill(clients, null);
+            total = 0;
+            size = 0;
+            return active;
+        }
+    }
+
+    /**
+     * Nothing to carry, a period with requests is never suppressed.
+     */
+    @Override
+    public void suppressed() {
+    }
+
+    /**
+     * Turn the value of a header identifying the client of a request into a
+     * valid Cloud Watch dimension value: the value is trimmed and capped at
+     * 255 characters.
+     * @param headerValue value of the header identifying the client, may be
+     * null
+     * @return the Client dimension value, or null if the header is missing,
+     * empty or has characters other than printable ASCII
+     */
+    public static String client(String headerValue) {
+        if (headerValue == null) {
+            return null;
+        }
+        headerValue = headerValue.trim();
+        if (headerValue.isEmpty() || !isPrintableAscii(headerValue)) {
+            return null;
+        }
+        return headerValue.length() > MAX_CLIENT_LENGTH ?
+                headerValue.substring(0, MAX_CLIENT_LENGTH) : headerValue;
+    }
+
+    private static boolean isPrintableAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The first 8 bytes of the SHA-256 digest of a value, in hex.
+     */
+    private static String digest(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+        StringBuilder sb = new StringBuilder("sha256:");
+        for (int i = 0; i < 8; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a client from a seed, finished with the
+     * MurmurHash3 mix so that every bit depends on every character.
+     */
+    private static long hash(String client, long seed) {
+        long h = seed;
+        for (int i = 0; i < client.length(); i++) {
+            h ^= client.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85EC3L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Index of a hash in a row of the sketch, remixing the whole 64 bit hash
+     * with a different constant for each row (the SplitMix64 finalizer) so
+     * that clients colliding in one row are unlikely to collide in the
+     * others.
+     */
+    private static int index(long hash, int row, int width) {
+        long h = hash + (row + 1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (int) ((h >>> 1) % width);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exponentially decaying 1, 5 and 15 minute request rates and ElapsedTime
+ * averages maintained for consumers in the same JVM, such as load shedding
+ * or readiness checks, that need to react within seconds rather than wait
+ * for Cloud Watch.
+ *
+ * Updates and reads are lock free and O(1). Requests are counted as they
+ * happen and folded into the moving averages every 5 seconds by whichever
+ * thread notices the interval has passed. The ElapsedTime averages decay the
+ * sum of ElapsedTime and the number of requests at the same rate so each is
+ * a request weighted average of recent requests.
+ *
+ * The instance is available to web applications as the servlet context
+ * attribute named by ATTRIBUTE when the valve is used at the Context level.
+ * @author web-online
+ */
+public class LocalStatistics {
+
+    /**
+     * servlet context attribute name
+     */
+    public static final String ATTRIBUTE = LocalStatistics.class.getName();
+
+    /**
+     * interval at which counts are folded into the moving averages
+     */
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * 1, 5 and 15 minute moving average windows in minutes
+     */
+    private static final int[] WINDOWS = {1, 5, 15};
+
+    /**
+     * smoothing factor of each window for a tick
+     */
+    private static final double[] ALPHAS = new double[WINDOWS.length];
+
+    static {
+        double tickMinutes = TICK_INTERVAL / (double) TimeUnit.MINUTES.toNanos(1);
+        for (int i = 0; i < WINDOWS.length; i++) {
+            ALPHAS[i] = 1 - Math.exp(-tickMinutes / WINDOWS[i]);
+        }
+    }
+
+    /**
+     * number of requests since this instance was created
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * number of requests not yet folded into the moving averages
+     */
+    private final AtomicLong uncounted = new AtomicLong();
+
+    /**
+     * sum of ElapsedTime not yet folded into the moving averages
+     */
+    private final AtomicLong uncountedElapsedTime = new AtomicLong();
+
+    /**
+     * time of the last tick
+     */
+    private final AtomicLong lastTick;
+
+    /**
+     * moving averages of requests per second as double bits, per window
+     */
+    private final AtomicLong[] rates = new AtomicLong[WINDOWS.length];
+
+    /**
+     * moving averages of ElapsedTime per second as double bits, per window
+     */
+    private final AtomicLong[] elapsedTimeRates = new AtomicLong[WINDOWS.length];
+
+    /**
+     * true after the first tick
+     */
+    private volatile boolean initialized = false;
+
+    /**
+     * Construct the instance.
+     */
+    public LocalStatistics() {
+        lastTick = new AtomicLong(nanoTime());
+        for (int i = 0; i < WINDOWS.length; i++) {
+            rates[i] = new AtomicLong(Double.doubleToLongBits(0d));
+            elapsedTimeRates[i] = new AtomicLong(Double.doubleToLongBits(0d));
+        }
+    }
+
+    /**
+     * Record a request.
+     * @param elapsedTime the elapsed time of the request in milliseconds
+     */
+    public void update(long elapsedTime) {
+        tickIfNecessary();
+        count.incrementAndGet();
+        uncounted.incrementAndGet();
+        uncountedElapsedTime.addAndGet(elapsedTime);
+    }
+
+    /**
+     * @return number of requests since this instance was created
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return requests per second averaged over the last minute
+     */
+    public double getOneMinuteRate() {
+        return rate(0);
+    }
+
+    /**
+     * @return requests per second averaged over the last 5 minutes
+     */
+    public double getFiveMinuteRate() {
+        return rate(1);
+    }
+
+    /**
+     * @return requests per second averaged over the last 15 minutes
+     */
+    public double getFifteenMinuteRate() {
+        return rate(2);
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last minute
+     */
+    public double getOneMinuteElapsedTime() {
+        return elapsedTime(0);
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last 5 minutes
+     */
+    public double getFiveMinuteElapsedTime() {
+        return elapsedTime(1);
+    }
+
+    /**
+     * @return ElapsedTime in milliseconds averaged over the last 15 minutes
+     */
+    public double getFifteenMinuteElapsedTime() {
+        return elapsedTime(2);
+    }
+
+    /**
+     * @return the current time in nanoseconds
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private double rate(int window) {
+        tickIfNecessary();
+        return Double.longBitsToDouble(rates[window].get());
+    }
+
+    private double elapsedTime(int window) {
+        tickIfNecessary();
+        double rate = Double.longBitsToDouble(rates[window].get());
+        double elapsedTimeRate = Double.longBitsToDouble(elapsedTimeRates[window].get());
+        return rate == 0 ? 0 : elapsedTimeRate / rate;
+    }
+
+    /**
+     * Fold the counts into the moving averages for the tick intervals that
+     * have passed. Only the thread that advances lastTick does the work.
+     */
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long age = nanoTime() - oldTick;
+        if (age >= TICK_INTERVAL) {
+            long newTick = oldTick + age - age % TICK_INTERVAL;
+            if (lastTick.compareAndSet(oldTick, newTick)) {
+                tick(age / TICK_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Fold the counts into the moving averages in the first of the given
+     * number of ticks, then decay them for the remaining ticks, which had no
+     * requests, in closed form so that reading after a long idle stretch
+     * costs the same as after a single tick.
+     */
+    private void tick(long ticks) {
+        double seconds = TICK_INTERVAL / (double) TimeUnit.SECONDS.toNanos(1);
+        double rate = uncounted.getAndSet(0) / seconds;
+        double elapsedTimeRate = uncountedElapsedTime.getAndSet(0) / seconds;
+        for (int i = 0; i < WINDOWS.length; i++) {
+            double idleDecay = Math.pow(1 - ALPHAS[i], ticks - 1);
+            decay(rates[i], rate, ALPHAS[i], idleDecay);
+            decay(elapsedTimeRates[i], elapsedTimeRate, ALPHAS[i], idleDecay);
+        }
+        initialized = true;
+    }
+
+    private void decay(AtomicLong average, double value, double alpha, double idleDecay) {
+        double current = Double.longBitsToDouble(average.get());
+        double next = initialized ? current + alpha * (value - current) : value;
+        average.set(Double.doubleToLongBits(next * idleDecay));
+    }
+}
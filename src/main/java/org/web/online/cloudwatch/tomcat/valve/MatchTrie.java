@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * A trie of strings that is matched directly against the bytes or chars of
+ * a MessageBytes so that matching a request does not create any Strings.
+ *
+ * Bytes are matched as ISO-8859-1 characters, so only rules made of ASCII
+ * characters will match a MessageBytes that has not been converted to chars.
+ * @author web-online
+ */
+class MatchTrie {
+
+    /**
+     * match if the value starts with one of the strings
+     */
+    static final int PREFIX = 0;
+
+    /**
+     * match if the value is equal to one of the strings
+     */
+    static final int EXACT = 1;
+
+    /**
+     * match if the value ends with one of the strings
+     */
+    static final int SUFFIX = 2;
+
+    /**
+     * one of PREFIX, EXACT or SUFFIX
+     */
+    private final int mode;
+
+    /**
+     * true to ignore the case of ASCII characters
+     */
+    private final boolean ignoreCase;
+
+    /**
+     * root of the trie
+     */
+    private final Node root = new Node();
+
+    /**
+     * true until a string is added
+     */
+    private boolean empty = true;
+
+    /**
+     * Construct an empty trie.
+     * @param mode one of PREFIX, EXACT or SUFFIX
+     * @param ignoreCase true to ignore the case of ASCII characters
+     */
+    MatchTrie(int mode, boolean ignoreCase) {
+        this.mode = mode;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Add a string to match.
+     * @param value string to match
+     */
+    void add(String value) {
+        Node node = root;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(mode == SUFFIX ? length - 1 - i : i);
+            node = node.add(fold(c));
+        }
+        node.terminal = true;
+        empty = false;
+    }
+
+    /**
+     * @return true if no strings have been added
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Match the value against the strings of this trie.
+     * @param value value to match, may be null
+     * @return true if the value matches one of the strings
+     */
+    boolean matches(MessageBytes value) {
+        if (empty || value == null) {
+            return false;
+        }
+        switch (value.getType()) {
+            case MessageBytes.T_BYTES:
+                ByteChunk bc = value.getByteChunk();
+                return matches(bc.getBuffer(), bc.getStart(), bc.getEnd());
+            case MessageBytes.T_CHARS:
+                CharChunk cc = value.getCharChunk();
+                return matches(cc.getBuffer(), cc.getStart(), cc.getEnd());
+            case MessageBytes.T_STR:
+                return matches(value.getString());
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Match a range of bytes.
+     */
+    private boolean matches(byte[] buffer, int start, int end) {
+        Node node = root;
+        int length = end - start;
+        for (int i = 0; i < length; i++) {
+            if (node.terminal && mode != EXACT) {
+                return true;
+            }
+            int c = buffer[mode == SUFFIX ? end - 1 - i : start + i] & 0xff;
+            node = node.child(fold(c));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    /**
+     * Match a range of chars.
+     */
+    private boolean matches(char[] buffer, int start, int end) {
+        Node node = root;
+        int length = end - start;
+        for (int i = 0; i < length; i++) {
+            if (node.terminal && mode != EXACT) {
+                return true;
+            }
+            int c = buffer[mode == SUFFIX ? end - 1 - i : start + i];
+            node = node.child(fold(c));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    /**
+     * Match a String.
+     */
+    private boolean matches(String value) {
+        Node node = root;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (node.terminal && mode != EXACT) {
+                return true;
+            }
+            int c = value.charAt(mode == SUFFIX ? length - 1 - i : i);
+            node = node.child(fold(c));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    /**
+     * Fold the case of an ASCII character if ignoring case.
+     */
+    private char fold(int c) {
+        if (ignoreCase && c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return (char) c;
+    }
+
+    /**
+     * A node of the trie. Children are kept in small parallel arrays that
+     * are searched linearly.
+     */
+    private static final class Node {
+
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private boolean terminal;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node add(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newKeys[keys.length] = c;
+                newChildren[children.length] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
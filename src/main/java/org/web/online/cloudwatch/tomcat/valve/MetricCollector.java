@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import java.util.List;
+
+/**
+ * A source of additional metric data that is collected by the
+ * ElapsedTimeAggregator at the end of each period and sent to Cloud Watch
+ * along with the ElapsedTime metric.
+ * @author web-online
+ */
+public interface MetricCollector {
+
+    /**
+     * Collect the metric data for the period that just ended and reset for
+     * the next period.
+     * @param dimensions dimensions to push each metric under. One MetricDatum
+     * is expected per dimension per metric.
+     * @param metricData list to add the collected MetricDatum objects to
+     * @return true if the collected values show activity. Values that are
+     * reported every period, such as gauges, should only count as activity
+     * when they change so that unchanged periods are left to the
+     * PublishPolicy heartbeat.
+     */
+    boolean collect(List<Dimension> dimensions, List<MetricDatum> metricData);
+
+    /**
+     * Called after collect when the PublishPolicy suppresses the period, so
+     * its data is never sent. Counts that would otherwise be lost should be
+     * carried into the next period.
+     */
+    void suppressed();
+}
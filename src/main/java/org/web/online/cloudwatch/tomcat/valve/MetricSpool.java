@@ -0,0 +1,393 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A bounded spool of MetricDatum that could not be sent to Cloud Watch,
+ * kept in a memory mapped file so that it survives restarts. Data is
+ * appended in a compact binary form and read back in the order it was
+ * appended with the original timestamps. When the spool is full the oldest
+ * data is dropped to make room, since it is the next to be too old for
+ * Cloud Watch to accept.
+ *
+ * The file starts with a magic number and the start and end of the data,
+ * followed by the data as a ring of length prefixed records. Data is only
+ * written to free space and the start or end is only moved after the data
+ * it covers is written or no longer needed, so a crash never leaves
+ * partly written records inside the data.
+ * @author web-online
+ */
+public class MetricSpool {
+
+    private static final Log log = LogFactory.getLog(MetricSpool.class);
+
+    /**
+     * default size of the spool file in bytes
+     */
+    public static final int DEFAULT_SIZE = 1024 * 1024;
+
+    /**
+     * magic number identifying a spool file
+     */
+    private static final int MAGIC = 0x43575352;
+
+    /**
+     * size of the header (magic number, start and end of the data)
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * size of the length prefixing each record
+     */
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * kind of a MetricDatum with a single value
+     */
+    private static final byte VALUE = 0;
+
+    /**
+     * kind of a MetricDatum with a StatisticSet
+     */
+    private static final byte STATISTIC_VALUES = 1;
+
+    /**
+     * the spool file
+     */
+    private final File file;
+
+    /**
+     * the open spool file
+     */
+    private final RandomAccessFile randomAccessFile;
+
+    /**
+     * the spool file mapped into memory
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * size of the ring of data after the header
+     */
+    private final int capacity;
+
+    /**
+     * number of MetricDatum dropped because the spool was full
+     */
+    private long droppedCount = 0;
+
+    /**
+     * Open or create the spool file.
+     * @param file the spool file
+     * @param size size of the spool file in bytes
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MetricSpool(File file, int size) throws IOException {
+        if (size <= HEADER_SIZE) {
+            throw new IllegalArgumentException("size (" + size
+                    + ") must be greater than " + HEADER_SIZE);
+        }
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long length = randomAccessFile.length();
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, length));
+        } catch (IOException ex) {
+            randomAccessFile.close();
+            throw ex;
+        }
+        capacity = buffer.capacity() - HEADER_SIZE;
+
+        int start = buffer.getInt(4);
+        int end = buffer.getInt(8);
+        if (buffer.getInt(0) != MAGIC || start < 0 || start >= capacity || end < 0 || end >= capacity) {
+            if (buffer.getInt(0) != 0) {
+                log.warn("discarding unrecognized spool file " + file);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 0);
+            buffer.putInt(8, 0);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Append MetricDatum to the spool, dropping the oldest MetricDatum
+     * when the spool is full.
+     * @param metricData the MetricDatum to append
+     * @return the number of MetricDatum dropped
+     */
+    public synchronized int append(List<MetricDatum> metricData) {
+        List<byte[]> records = new ArrayList<byte[]>(metricData.size());
+        int needed = 0;
+        for (MetricDatum metricDatum : metricData) {
+            byte[] record = encode(metricDatum);
+            records.add(record);
+            needed += record.length;
+        }
+
+        // one byte of the ring is always free to tell a full ring from an
+        // empty one
+        int dropped = 0;
+        while (needed > capacity - 1 && !records.isEmpty()) {
+            needed -= records.remove(0).length;
+            dropped++;
+        }
+        int start = buffer.getInt(4);
+        int end = buffer.getInt(8);
+        if (needed > free(start, end)) {
+            while (needed > free(start, end)) {
+                start = next(start, end);
+                dropped++;
+            }
+            // stop reading the oldest data before overwriting it
+            buffer.putInt(4, start);
+            buffer.force();
+        }
+
+        for (byte[] record : records) {
+            put(end, record);
+            end = advance(end, record.length);
+        }
+        buffer.putInt(8, end);
+        buffer.force();
+
+        if (dropped > 0) {
+            droppedCount += dropped;
+            log.warn("spool " + file + " is full, dropped the oldest " + dropped + " metric data");
+        }
+        return dropped;
+    }
+
+    /**
+     * Remove MetricDatum from the start of the spool, such as after they
+     * have been sent.
+     * @param count number of MetricDatum to remove, as returned in order by
+     * read
+     */
+    public synchronized void remove(int count) {
+        int start = buffer.getInt(4);
+        int end = buffer.getInt(8);
+        for (int i = 0; i < count && start != end; i++) {
+            start = next(start, end);
+        }
+        buffer.putInt(4, start);
+        buffer.force();
+    }
+
+    /**
+     * @return the MetricDatum in the spool in the order they were appended
+     */
+    public synchronized List<MetricDatum> read() {
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        int position = buffer.getInt(4);
+        int end = buffer.getInt(8);
+        try {
+            while (position != end) {
+                int length = getInt(position);
+                if (length <= 0 || length > capacity - 1) {
+                    throw new IOException("invalid record length " + length);
+                }
+                position = advance(position, LENGTH_SIZE);
+                byte[] bytes = get(position, length);
+                metricData.add(decode(new DataInputStream(new ByteArrayInputStream(bytes))));
+                position = advance(position, length);
+            }
+        } catch (IOException ex) {
+            log.warn("discarding unreadable data at the end of spool " + file, ex);
+        }
+        return metricData;
+    }
+
+    /**
+     * @return true if the spool is empty
+     */
+    public synchronized boolean isEmpty() {
+        return buffer.getInt(4) == buffer.getInt(8);
+    }
+
+    /**
+     * Remove everything from the spool.
+     */
+    public synchronized void clear() {
+        buffer.putInt(4, buffer.getInt(8));
+        buffer.force();
+    }
+
+    /**
+     * @return number of MetricDatum dropped because the spool was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Flush and close the spool file.
+     * @throws IOException if the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Free bytes in the ring, keeping one byte free.
+     */
+    private int free(int start, int end) {
+        return start > end ? start - end - 1 : capacity - (end - start) - 1;
+    }
+
+    /**
+     * Position in the ring a number of bytes after a position.
+     */
+    private int advance(int position, int length) {
+        return (position + length) % capacity;
+    }
+
+    /**
+     * Position of the record after the record at a position, or the end if
+     * the length of the record is unreadable.
+     */
+    private int next(int position, int end) {
+        int length = getInt(position);
+        if (length <= 0 || length > capacity - 1) {
+            log.warn("discarding unreadable data in spool " + file);
+            return end;
+        }
+        return advance(position, LENGTH_SIZE + length);
+    }
+
+    /**
+     * Write bytes to the ring from a position, wrapping around at the end.
+     * The buffer is cast to Buffer to call the position method that exists
+     * on every Java version, rather than the covariant override added to
+     * MappedByteBuffer in Java 9.
+     */
+    private void put(int position, byte[] bytes) {
+        int first = Math.min(bytes.length, capacity - position);
+        ((Buffer) buffer).position(HEADER_SIZE + position);
+        buffer.put(bytes, 0, first);
+        if (first < bytes.length) {
+            ((Buffer) buffer).position(HEADER_SIZE);
+            buffer.put(bytes, first, bytes.length - first);
+        }
+    }
+
+    /**
+     * Read bytes from the ring from a position, wrapping around at the end.
+     */
+    private byte[] get(int position, int length) {
+        byte[] bytes = new byte[length];
+        int first = Math.min(length, capacity - position);
+        ((Buffer) buffer).position(HEADER_SIZE + position);
+        buffer.get(bytes, 0, first);
+        if (first < length) {
+            ((Buffer) buffer).position(HEADER_SIZE);
+            buffer.get(bytes, first, length - first);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read the length of the record at a position in the ring.
+     */
+    private int getInt(int position) {
+        byte[] bytes = get(position, LENGTH_SIZE);
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16)
+                | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+
+    private static byte[] encode(MetricDatum metricDatum) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // room for the length, filled in below
+            out.writeInt(0);
+            out.writeLong(metricDatum.getTimestamp().getTime());
+            out.writeUTF(metricDatum.getMetricName());
+            out.writeUTF(metricDatum.getUnit());
+            out.writeByte(metricDatum.getDimensions().size());
+            for (Dimension dimension : metricDatum.getDimensions()) {
+                out.writeUTF(dimension.getName());
+                out.writeUTF(dimension.getValue());
+            }
+            StatisticSet statisticSet = metricDatum.getStatisticValues();
+            if (statisticSet == null) {
+                out.writeByte(VALUE);
+                out.writeDouble(metricDatum.getValue());
+            } else {
+                out.writeByte(STATISTIC_VALUES);
+                out.writeDouble(statisticSet.getSampleCount());
+                out.writeDouble(statisticSet.getSum());
+                out.writeDouble(statisticSet.getMinimum());
+                out.writeDouble(statisticSet.getMaximum());
+            }
+            out.close();
+        } catch (IOException ex) {
+            // not thrown when writing to a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        // prefix the record with its length
+        byte[] record = bytes.toByteArray();
+        int length = record.length - LENGTH_SIZE;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+
+    private static MetricDatum decode(DataInputStream in) throws IOException {
+        MetricDatum metricDatum = new MetricDatum().
+                withTimestamp(new Date(in.readLong())).
+                withMetricName(in.readUTF()).
+                withUnit(in.readUTF());
+        int dimensions = in.readByte();
+        for (int i = 0; i < dimensions; i++) {
+            metricDatum.withDimensions(new Dimension().withName(in.readUTF()).withValue(in.readUTF()));
+        }
+        if (in.readByte() == VALUE) {
+            metricDatum.setValue(in.readDouble());
+        } else {
+            metricDatum.setStatisticValues(new StatisticSet().
+                    withSampleCount(in.readDouble()).
+                    withSum(in.readDouble()).
+                    withMinimum(in.readDouble()).
+                    withMaximum(in.readDouble()));
+        }
+        return metricDatum;
+    }
+}
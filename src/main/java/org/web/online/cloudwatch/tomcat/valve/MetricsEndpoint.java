@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+/**
+ * Renders the current counters, histograms and gauges of the valve in the
+ * Prometheus text exposition format for clusters that scrape metrics rather
+ * than push them.
+ *
+ * The text is rendered at most once per scrape interval into a cached byte
+ * array that every scrape within the interval shares. A new array replaces
+ * the cached one rather than overwriting it, so a scrape still writing the
+ * previous array is not affected.
+ * @author web-online
+ */
+public class MetricsEndpoint {
+
+    /**
+     * content type of the rendered text
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * prefix of all metric names
+     */
+    private static final String PREFIX = "cloudwatch_valve_";
+
+    /**
+     * minimum time between renders in milliseconds
+     */
+    private final long scrapeInterval;
+
+    private final LocalStatistics localStatistics;
+
+    private final ElapsedTimeHistogram histogram;
+
+    private final PublishPolicy publishPolicy;
+
+    /**
+     * counter of requests not aggregated, may be null
+     */
+    private final CountCollector excludedCollector;
+
+    /**
+     * lock object for synchronization of rendering
+     */
+    private final Object lock = new Object();
+
+    /**
+     * reused to render the text
+     */
+    private final StringBuilder text = new StringBuilder(2048);
+
+    /**
+     * the last rendered text
+     */
+    private volatile byte[] rendered;
+
+    /**
+     * time of the last render
+     */
+    private volatile long renderedAt;
+
+    /**
+     * Construct the instance.
+     * @param scrapeInterval minimum time between renders in milliseconds
+     * @param localStatistics request count, rates and ElapsedTime averages
+     * @param histogram ElapsedTime histogram
+     * @param publishPolicy counts of calls made to and saved from Cloud Watch
+     * @param excludedCollector counter of requests not aggregated, may be null
+     */
+    public MetricsEndpoint(long scrapeInterval, LocalStatistics localStatistics,
+            ElapsedTimeHistogram histogram, PublishPolicy publishPolicy,
+            CountCollector excludedCollector) {
+        this.scrapeInterval = scrapeInterval;
+        this.localStatistics = localStatistics;
+        this.histogram = histogram;
+        this.publishPolicy = publishPolicy;
+        this.excludedCollector = excludedCollector;
+    }
+
+    /**
+     * @return the rendered text as US-ASCII bytes, rendering it first if
+     * the last render is older than the scrape interval. The array must not
+     * be modified.
+     */
+    public byte[] render() {
+        long now = System.currentTimeMillis();
+        if (rendered == null || now - renderedAt >= scrapeInterval) {
+            synchronized (lock) {
+                if (rendered == null || now - renderedAt >= scrapeInterval) {
+                    rendered = renderText();
+                    renderedAt = now;
+                }
+            }
+        }
+        return rendered;
+    }
+
+    private byte[] renderText() {
+        text.setLength(0);
+
+        counter("requests_total", "Requests aggregated.", localStatistics.getCount());
+        if (excludedCollector != null) {
+            counter("excluded_requests_total", "Requests not aggregated.", excludedCollector.getTotal());
+        }
+        counter("cloudwatch_calls_total", "PutMetricData calls made.", publishPolicy.getPublishedCount());
+        counter("cloudwatch_calls_suppressed_total", "PutMetricData calls saved by not pushing idle periods.",
+                publishPolicy.getSuppressedCount());
+
+        header("elapsed_time_milliseconds", "ElapsedTime of aggregated requests.", "histogram");
+        long cumulative = 0;
+        for (int bucket = 0; bucket < histogram.getBucketCount(); bucket++) {
+            cumulative += histogram.getCount(bucket);
+            long bound = histogram.getBound(bucket);
+            text.append(PREFIX).append("elapsed_time_milliseconds_bucket{le=\"");
+            if (bound == Long.MAX_VALUE) {
+                text.append("+Inf");
+            } else {
+                text.append(bound);
+            }
+            text.append("\"} ").append(cumulative).append('\n');
+        }
+        text.append(PREFIX).append("elapsed_time_milliseconds_sum ").append(histogram.getSum()).append('\n');
+        text.append(PREFIX).append("elapsed_time_milliseconds_count ").append(cumulative).append('\n');
+
+        gauge("one_minute_rate", "Requests per second averaged over the last minute.",
+                localStatistics.getOneMinuteRate());
+        gauge("five_minute_rate", "Requests per second averaged over the last 5 minutes.",
+                localStatistics.getFiveMinuteRate());
+        gauge("fifteen_minute_rate", "Requests per second averaged over the last 15 minutes.",
+                localStatistics.getFifteenMinuteRate());
+        gauge("one_minute_elapsed_time_milliseconds", "ElapsedTime averaged over the last minute.",
+                localStatistics.getOneMinuteElapsedTime());
+        gauge("five_minute_elapsed_time_milliseconds", "ElapsedTime averaged over the last 5 minutes.",
+                localStatistics.getFiveMinuteElapsedTime());
+        gauge("fifteen_minute_elapsed_time_milliseconds", "ElapsedTime averaged over the last 15 minutes.",
+                localStatistics.getFifteenMinuteElapsedTime());
+
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+
+    private void header(String name, String help, String type) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private void counter(String name, String help, long value) {
+        header(name, help, "counter");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private void gauge(String name, String help, double value) {
+        header(name, help, "gauge");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+}
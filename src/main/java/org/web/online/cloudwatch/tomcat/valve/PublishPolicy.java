@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether an idle period (a period with no requests and nothing but
+ * zero or unchanged values to report) is published to Cloud Watch, and
+ * keeps count of the calls made and the calls saved.
+ *
+ * The first idle period after activity is always published so the metric
+ * drops to zero. After that, heartbeats are published every
+ * heartbeatPeriods idle periods, doubling the gap after each heartbeat until
+ * it reaches maxHeartbeatPeriods. Any activity resets the gap.
+ *
+ * With the defaults of 1 and 1 every idle period is published.
+ * @author web-online
+ */
+public class PublishPolicy {
+
+    /**
+     * initial number of idle periods between heartbeats
+     */
+    private final int heartbeatPeriods;
+
+    /**
+     * maximum number of idle periods between heartbeats
+     */
+    private final int maxHeartbeatPeriods;
+
+    /**
+     * current number of idle periods between heartbeats
+     */
+    private int interval;
+
+    /**
+     * number of idle periods since the last publish
+     */
+    private int idlePeriods = 0;
+
+    /**
+     * number of PutMetricData calls made
+     */
+    private final AtomicLong publishedCount = new AtomicLong();
+
+    /**
+     * number of PutMetricData calls saved by suppressing idle periods
+     */
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    /**
+     * Construct a policy that publishes every idle period.
+     */
+    public PublishPolicy() {
+        this(1, 1);
+    }
+
+    /**
+     * Construct the policy.
+     * @param heartbeatPeriods initial number of idle periods between heartbeats
+     * @param maxHeartbeatPeriods maximum number of idle periods between heartbeats
+     * @throws IllegalArgumentException if heartbeatPeriods is less than 1 or
+     * maxHeartbeatPeriods is less than heartbeatPeriods
+     */
+    public PublishPolicy(int heartbeatPeriods, int maxHeartbeatPeriods) {
+        if (heartbeatPeriods < 1) {
+            throw new IllegalArgumentException("heartbeatPeriods ("
+                    + heartbeatPeriods + ") must be at least 1");
+        }
+        if (maxHeartbeatPeriods < heartbeatPeriods) {
+            throw new IllegalArgumentException("maxHeartbeatPeriods ("
+                    + maxHeartbeatPeriods + ") must be at least heartbeatPeriods ("
+                    + heartbeatPeriods + ")");
+        }
+        this.heartbeatPeriods = heartbeatPeriods;
+        this.maxHeartbeatPeriods = maxHeartbeatPeriods;
+        this.interval = heartbeatPeriods;
+    }
+
+    /**
+     * Record a period with activity, resetting the heartbeat gap.
+     */
+    public void active() {
+        idlePeriods = 0;
+        interval = heartbeatPeriods;
+    }
+
+    /**
+     * Record an idle period.
+     * @return true if the idle period should be published
+     */
+    public boolean idle() {
+        if (idlePeriods++ == 0) {
+            return true;
+        }
+        if (idlePeriods > interval) {
+            idlePeriods = 1;
+            interval = interval > maxHeartbeatPeriods / 2 ?
+                    maxHeartbeatPeriods : interval * 2;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record PutMetricData calls made.
+     * @param calls number of calls
+     */
+    public void published(int calls) {
+        publishedCount.addAndGet(calls);
+    }
+
+    /**
+     * Record PutMetricData calls saved.
+     * @param calls number of calls
+     */
+    public void suppressed(int calls) {
+        suppressedCount.addAndGet(calls);
+    }
+
+    /**
+     * @return number of PutMetricData calls made
+     */
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * @return number of PutMetricData calls saved by suppressing idle periods
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+}
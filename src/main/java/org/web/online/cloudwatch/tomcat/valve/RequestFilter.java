@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import org.apache.coyote.Request;
+
+/**
+ * Decides which requests are aggregated using include and exclude rules.
+ * A request is aggregated if there are no include rules or it matches one
+ * of the include rules, and it does not match any of the exclude rules.
+ *
+ * Rules are compiled into tries once and matched against the decoded URI,
+ * method and User-Agent header of the coyote Request without creating
+ * Strings.
+ * @author web-online
+ */
+public class RequestFilter {
+
+    /**
+     * rules a request must match one of, if any
+     */
+    private final Rules include;
+
+    /**
+     * rules a request must not match any of
+     */
+    private final Rules exclude;
+
+    /**
+     * Construct the instance.
+     * @param include rules a request must match one of, if any
+     * @param exclude rules a request must not match any of
+     */
+    public RequestFilter(Rules include, Rules exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * @param request the request to check
+     * @return true if the request should be aggregated
+     */
+    public boolean accept(Request request) {
+        if (!include.isEmpty() && !include.matches(request)) {
+            return false;
+        }
+        return !exclude.matches(request);
+    }
+
+    /**
+     * A set of rules, each given as a comma separated list.
+     */
+    public static class Rules {
+
+        /**
+         * decoded URI prefixes such as /health
+         */
+        private final MatchTrie paths = new MatchTrie(MatchTrie.PREFIX, false);
+
+        /**
+         * decoded URI extensions, ignoring case, such as css
+         */
+        private final MatchTrie extensions = new MatchTrie(MatchTrie.SUFFIX, true);
+
+        /**
+         * methods such as HEAD
+         */
+        private final MatchTrie methods = new MatchTrie(MatchTrie.EXACT, false);
+
+        /**
+         * User-Agent header prefixes such as ELB-HealthChecker
+         */
+        private final MatchTrie userAgents = new MatchTrie(MatchTrie.PREFIX, false);
+
+        /**
+         * Construct the rules.
+         * @param paths comma separated decoded URI prefixes, may be null
+         * @param extensions comma separated extensions with or without a
+         * leading period, may be null
+         * @param methods comma separated methods, may be null
+         * @param userAgents comma separated User-Agent prefixes, may be null
+         */
+        public Rules(String paths, String extensions, String methods, String userAgents) {
+            for (String path : split(paths)) {
+                this.paths.add(path);
+            }
+            for (String extension : split(extensions)) {
+                this.extensions.add(extension.startsWith(".") ? extension : "." + extension);
+            }
+            for (String method : split(methods)) {
+                this.methods.add(method);
+            }
+            for (String userAgent : split(userAgents)) {
+                this.userAgents.add(userAgent);
+            }
+        }
+
+        /**
+         * @return true if there are no rules
+         */
+        public boolean isEmpty() {
+            return paths.isEmpty() && extensions.isEmpty()
+                    && methods.isEmpty() && userAgents.isEmpty();
+        }
+
+        /**
+         * @param request the request to check
+         * @return true if the request matches any of the rules
+         */
+        public boolean matches(Request request) {
+            return paths.matches(request.decodedURI())
+                    || extensions.matches(request.decodedURI())
+                    || methods.matches(request.method())
+                    || (!userAgents.isEmpty() &&
+                        userAgents.matches(request.getMimeHeaders().getValue("user-agent")));
+        }
+
+        /**
+         * Split a comma separated list, trimming and dropping empty values.
+         */
+        private static String[] split(String list) {
+            if (list == null || list.trim().isEmpty()) {
+                return new String[0];
+            }
+            String[] values = list.trim().split("\\s*,\\s*");
+            int count = 0;
+            for (String value : values) {
+                if (!value.isEmpty()) {
+                    values[count++] = value;
+                }
+            }
+            String[] result = new String[count];
+            System.arraycopy(values, 0, result, 0, count);
+            return result;
+        }
+    }
+}
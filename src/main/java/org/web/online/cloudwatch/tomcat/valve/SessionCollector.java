@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.Manager;
+
+/**
+ * A MetricCollector that samples the session Manager of each Context at or
+ * below a Container and pushes ActiveSessions, SessionsCreated,
+ * SessionsExpired, SessionsRejected and SessionAverageAliveTime under an
+ * additional Context dimension. When the Container is above the Host level,
+ * a Host dimension is added as well so that Contexts with the same path on
+ * different Hosts are pushed as separate metrics.
+ *
+ * Only the counters kept by the Manager are read, the sessions themselves
+ * are not iterated. Created, expired and rejected sessions are the change
+ * in the Manager's counters since the previous period.
+ *
+ * A period only counts as activity if sessions were created, expired or
+ * rejected or the number of active sessions changed, so lingering sessions
+ * with unchanged values are left to the PublishPolicy heartbeat.
+ * @author web-online
+ */
+public class SessionCollector implements MetricCollector {
+
+    /**
+     * the Container (Engine, Host or Context) whose Contexts are sampled
+     */
+    private final Container container;
+
+    /**
+     * true to push a Host dimension, when the Container is above the Host
+     * level
+     */
+    private final boolean hostDimension;
+
+    /**
+     * created, expired and rejected session counters and active sessions of
+     * each Context at the previous period
+     */
+    private final Map<Context, long[]> previous = new WeakHashMap<Context, long[]>();
+
+    /**
+     * Construct the instance.
+     * @param container the Container (Engine, Host or Context) whose
+     * Contexts are sampled
+     */
+    public SessionCollector(Container container) {
+        this.container = container;
+        hostDimension = !(container instanceof Host) && !(container instanceof Context);
+    }
+
+    /**
+     * Collect the session metrics of each Context for the period that just
+     * ended.
+     * @param dimensions dimensions to push the metrics under, each combined
+     * with a Context dimension and, above the Host level, a Host dimension
+     * @param metricData list to add the collected MetricDatum objects to
+     * @return true if any Context had sessions created, expired or rejected
+     * or a change in active sessions
+     */
+    @Override
+    public boolean collect(List<Dimension> dimensions, List<MetricDatum> metricData) {
+        return collect(container, dimensions, metricData);
+    }
+
+    private boolean collect(Container container, List<Dimension> dimensions, List<MetricDatum> metricData) {
+        if (!(container instanceof Context)) {
+            boolean active = false;
+            for (Container child : container.findChildren()) {
+                active |= collect(child, dimensions, metricData);
+            }
+            return active;
+        }
+
+        Context context = (Context) container;
+        Manager manager = context.getManager();
+        if (manager == null) {
+            return false;
+        }
+
+        int activeSessions = manager.getActiveSessions();
+        long[] counters = {
+            manager.getSessionCounter(),
+            manager.getExpiredSessions(),
+            manager.getRejectedSessions(),
+            activeSessions
+        };
+        long[] last = previous.put(context, counters);
+        if (last == null) {
+            // the first sample is the baseline
+            last = counters;
+        }
+        long created = delta(counters[0], last[0]);
+        long expired = delta(counters[1], last[1]);
+        long rejected = delta(counters[2], last[2]);
+
+        String path = context.getPath();
+        List<Dimension> contextDimensions = new ArrayList<Dimension>(2);
+        contextDimensions.add(new Dimension().withName("Context").
+                withValue(path == null || path.isEmpty() ? "/" : path));
+        if (hostDimension && context.getParent() != null) {
+            contextDimensions.add(new Dimension().withName("Host").
+                    withValue(context.getParent().getName()));
+        }
+        for (Dimension dimension : dimensions) {
+            metricData.add(datum("ActiveSessions", dimension, contextDimensions,
+                    activeSessions, StandardUnit.Count));
+            metricData.add(datum("SessionsCreated", dimension, contextDimensions,
+                    created, StandardUnit.Count));
+            metricData.add(datum("SessionsExpired", dimension, contextDimensions,
+                    expired, StandardUnit.Count));
+            metricData.add(datum("SessionsRejected", dimension, contextDimensions,
+                    rejected, StandardUnit.Count));
+            metricData.add(datum("SessionAverageAliveTime", dimension, contextDimensions,
+                    manager.getSessionAverageAliveTime(), StandardUnit.Seconds));
+        }
+
+        return activeSessions != last[3] || created > 0 || expired > 0 || rejected > 0;
+    }
+
+    /**
+     * Nothing to carry, a period with sessions created, expired or rejected
+     * is never suppressed.
+     */
+    @Override
+    public void suppressed() {
+    }
+
+    /**
+     * Change in a counter, treating a counter that went down (such as after
+     * the Manager was replaced on reload) as having restarted from zero.
+     */
+    private static long delta(long current, long last) {
+        return current >= last ? current - last : current;
+    }
+
+    private static MetricDatum datum(String metricName, Dimension dimension,
+            List<Dimension> contextDimensions, double value, StandardUnit unit) {
+        List<Dimension> datumDimensions = new ArrayList<Dimension>(contextDimensions.size() + 1);
+        datumDimensions.add(dimension);
+        datumDimensions.addAll(contextDimensions);
+        return new MetricDatum().
+                withMetricName(metricName).
+                withDimensions(datumDimensions).
+                withValue(value).
+                withUnit(unit);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.ec2.AmazonEC2;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * End to end load harness. Boots an embedded Tomcat with one context with
+ * the CloudWatchValve in its pipeline and one without, drives concurrent
+ * HTTP load against both, pushes to a FakeCloudWatchServer and reports the
+ * throughput and latency with and without the valve along with the
+ * accuracy of the pushed statistics.
+ *
+ * The harness takes several seconds and depends on timing, so it only runs
+ * when the load system property is true.
+ *
+ * Load is driven in rounds that alternate which context goes first, and
+ * the median throughput of the rounds is reported. The load is configured
+ * with the system properties load.threads, load.requests (per thread per
+ * round), load.rounds and load.servletMillis (time spent by the servlet on
+ * each request), for example:
+ *
+ *     mvn test -Dtest=CloudWatchValveLoadTest -Dload=true -Dload.threads=16 -Dload.requests=1000 -Dload.rounds=9
+ *
+ * @author web-online
+ */
+public class CloudWatchValveLoadTest {
+
+    private static final Logger logger = Logger.getLogger("CloudWatchValveLoadTest");
+
+    private final int threads = Integer.getInteger("load.threads", 4);
+    private final int requests = Integer.getInteger("load.requests", 250);
+    private final int servletMillis = Integer.getInteger("load.servletMillis", 2);
+    private final int rounds = Integer.getInteger("load.rounds", 5);
+
+    private FakeCloudWatchServer cloudWatch;
+    private Tomcat tomcat;
+    private ElapsedTimeAggregator aggregator;
+    private File baseDir;
+    private Context valved;
+
+    /**
+     * A servlet that optionally sleeps and then writes a short response.
+     */
+    private static class LoadServlet extends HttpServlet {
+
+        private final int sleepMillis;
+
+        LoadServlet(int sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().write("ok");
+        }
+    }
+
+    /**
+     * The results of driving load against a url.
+     */
+    private static class LoadResult {
+
+        final long requests;
+        final double seconds;
+        final double[] latencies;
+
+        LoadResult(long requests, double seconds, double[] latencies) {
+            this.requests = requests;
+            this.seconds = seconds;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        static LoadResult merge(List<LoadResult> results) {
+            long requests = 0;
+            double seconds = 0;
+            for (LoadResult result : results) {
+                requests += result.requests;
+                seconds += result.seconds;
+            }
+            double[] latencies = new double[(int) requests];
+            int offset = 0;
+            for (LoadResult result : results) {
+                System.arraycopy(result.latencies, 0, latencies, offset, result.latencies.length);
+                offset += result.latencies.length;
+            }
+            return new LoadResult(requests, seconds, latencies);
+        }
+
+        double throughput() {
+            return requests / seconds;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double latency : latencies) {
+                sum += latency;
+            }
+            return sum / latencies.length;
+        }
+
+        double percentile(double p) {
+            return latencies[(int) Math.min(latencies.length - 1, Math.floor(p * latencies.length))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %.0f req/s, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                    requests, throughput(), mean(), percentile(0.5), percentile(0.99),
+                    latencies[latencies.length - 1]);
+        }
+    }
+
+    @BeforeClass
+    public static void beforeClass() {
+        Assume.assumeTrue(Boolean.getBoolean("load"));
+    }
+
+    @Before
+    public void beforeTest() throws Exception {
+        cloudWatch = new FakeCloudWatchServer();
+
+        baseDir = File.createTempFile("cloudwatch-valve", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+        tomcat.setPort(0);
+
+        Context plain = tomcat.addContext("/plain", baseDir.getAbsolutePath());
+        Tomcat.addServlet(plain, "load", new LoadServlet(servletMillis));
+        plain.addServletMapping("/*", "load");
+
+        valved = tomcat.addContext("/valve", baseDir.getAbsolutePath());
+        Tomcat.addServlet(valved, "load", new LoadServlet(servletMillis));
+        valved.addServletMapping("/*", "load");
+        CloudWatchValve valve = new CloudWatchValve() {
+            @Override
+            protected ElapsedTimeAggregator createAggregator(String namespace) {
+                AmazonCloudWatchClient cloudWatchClient =
+                        new AmazonCloudWatchClient(new BasicAWSCredentials("fake", "fake"));
+                aggregator = new ElapsedTimeAggregator(namespace, Region.getRegion(Regions.US_WEST_1),
+                        "i-500f6ca6", "TEST", mock(AmazonEC2.class), cloudWatchClient);
+                cloudWatchClient.setEndpoint(cloudWatch.getEndpoint());
+                return aggregator;
+            }
+        };
+        valve.setMetricsPath("/valve/metrics");
+        valved.getPipeline().addValve(valve);
+
+        tomcat.start();
+    }
+
+    @After
+    public void afterTest() throws Exception {
+        tomcat.stop();
+        tomcat.destroy();
+        cloudWatch.stop();
+        delete(baseDir);
+    }
+
+    /**
+     * Drive load with and without the valve and compare the statistics
+     * pushed to Cloud Watch with those measured by the clients.
+     * @throws Exception
+     */
+    @Test
+    public void testLoad() throws Exception {
+        logger.info("load");
+        int port = tomcat.getConnector().getLocalPort();
+        URL plainUrl = new URL("http://127.0.0.1:" + port + "/plain/");
+        URL valveUrl = new URL("http://127.0.0.1:" + port + "/valve/");
+
+        // warm up both contexts and discard what the valve saw
+        load(plainUrl, Math.max(1, requests / 5));
+        load(valveUrl, Math.max(1, requests / 5));
+        aggregator.run();
+        cloudWatch.reset();
+
+        // alternate which context goes first in each round so neither
+        // gets all of the JIT and connection warm up
+        double[] plainThroughputs = new double[rounds];
+        double[] valveThroughputs = new double[rounds];
+        List<LoadResult> plainResults = new ArrayList<LoadResult>();
+        List<LoadResult> valveResults = new ArrayList<LoadResult>();
+        for (int round = 0; round < rounds; round++) {
+            LoadResult plainRound;
+            LoadResult valveRound;
+            if (round % 2 == 0) {
+                plainRound = load(plainUrl, requests);
+                valveRound = load(valveUrl, requests);
+            } else {
+                valveRound = load(valveUrl, requests);
+                plainRound = load(plainUrl, requests);
+            }
+            plainThroughputs[round] = plainRound.throughput();
+            valveThroughputs[round] = valveRound.throughput();
+            plainResults.add(plainRound);
+            valveResults.add(valveRound);
+        }
+        aggregator.run();
+
+        LoadResult plainResult = LoadResult.merge(plainResults);
+        LoadResult valveResult = LoadResult.merge(valveResults);
+        double plainThroughput = median(plainThroughputs);
+        double valveThroughput = median(valveThroughputs);
+
+        double sampleCount = cloudWatch.total("ElapsedTime", "InstanceId", "StatisticValues.SampleCount");
+        double sum = cloudWatch.total("ElapsedTime", "InstanceId", "StatisticValues.Sum");
+        double publishedMean = sum / sampleCount;
+
+        logger.info("without valve: " + plainResult);
+        logger.info("with valve:    " + valveResult);
+        logger.info(String.format("over %d rounds median throughput %.0f req/s without valve, %.0f req/s with valve",
+                rounds, plainThroughput, valveThroughput));
+        logger.info(String.format("median throughput delta %.1f%%, mean latency delta %.3f ms",
+                100 * (valveThroughput - plainThroughput) / plainThroughput,
+                valveResult.mean() - plainResult.mean()));
+        logger.info(String.format("pushed %d PutMetricData calls, SampleCount %.0f (actual %d), mean %.3f ms (client measured %.3f ms)",
+                cloudWatch.getRequestCount(), sampleCount, valveResult.requests,
+                publishedMean, valveResult.mean()));
+
+        assertEquals(valveResult.requests, (long) sampleCount);
+        LocalStatistics localStatistics = (LocalStatistics)
+                valved.getServletContext().getAttribute(LocalStatistics.ATTRIBUTE);
+        long requestCount = valveResult.requests + Math.max(1, requests / 5) * threads;
+        assertEquals(requestCount, localStatistics.getCount());
+
+        // scraping is answered by the valve and not aggregated
+        String metrics = get(new URL(valveUrl, "metrics"));
+        assertTrue(metrics.contains("\ncloudwatch_valve_requests_total " + requestCount + "\n"));
+        assertEquals(requestCount, localStatistics.getCount());
+        // other methods are passed to the application, which does not
+        // handle POST
+        HttpURLConnection connection = (HttpURLConnection) new URL(valveUrl, "metrics").openConnection();
+        connection.setRequestMethod("POST");
+        assertEquals(405, connection.getResponseCode());
+        connection.disconnect();
+        // the valve measures in whole milliseconds inside the server so its
+        // mean can only exceed the client measured mean by rounding, and it
+        // includes the time spent in the servlet
+        assertTrue(publishedMean <= valveResult.mean() + 1);
+        assertTrue("published mean " + publishedMean + " ms is less than the "
+                + servletMillis + " ms spent in the servlet", publishedMean >= servletMillis);
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Drive concurrent load against a url.
+     */
+    private LoadResult load(final URL url, final int requestsPerThread) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            final double[][] latencies = new double[threads][requestsPerThread];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final double[] threadLatencies = latencies[t];
+                futures[t] = pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            long requestStart = System.nanoTime();
+                            get(url);
+                            threadLatencies[i] = (System.nanoTime() - requestStart) / 1e6;
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double[] all = new double[threads * requestsPerThread];
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(latencies[t], 0, all, t * requestsPerThread, requestsPerThread);
+            }
+            return new LoadResult(all.length, seconds, all);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Make a GET request and read the whole response.
+     */
+    private static String get(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
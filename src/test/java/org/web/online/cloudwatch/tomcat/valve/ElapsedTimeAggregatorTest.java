@@ -16,15 +16,29 @@
  */
 package org.web.online.cloudwatch.tomcat.valve;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.model.DescribeTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeTagsResult;
 import com.amazonaws.services.ec2.model.TagDescription;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -106,5 +120,260 @@ public class ElapsedTimeAggregatorTest {
             "}";
         assertEquals(asgExpected, asgAggregator.toString());
     }
-    
+
+    /**
+     * Test of run method, of class ElapsedTimeAggregator, with additional
+     * collectors pushed in batches.
+     */
+    @Test
+    public void testRunWithCollectors() {
+        logger.info("runWithCollectors");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", "TEST", ec2Client, cloudWatchClient);
+        List<CountCollector> collectors = new ArrayList<CountCollector>();
+        for (int i = 0; i < 10; i++) {
+            CountCollector collector = new CountCollector("Count" + i);
+            instance.addCollector(collector);
+            collectors.add(collector);
+        }
+        instance.aggregate(10);
+        instance.aggregate(20);
+        collectors.get(9).increment();
+        instance.run();
+
+        ArgumentCaptor<PutMetricDataRequest> captor = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(cloudWatchClient, times(2)).putMetricData(captor.capture());
+        List<PutMetricDataRequest> requests = captor.getAllValues();
+        assertEquals(20, requests.get(0).getMetricData().size());
+        assertEquals(2, requests.get(1).getMetricData().size());
+        MetricDatum elapsedTime = requests.get(0).getMetricData().get(0);
+        assertEquals("ElapsedTime", elapsedTime.getMetricName());
+        assertEquals(2d, elapsedTime.getStatisticValues().getSampleCount(), 0d);
+        assertEquals(30d, elapsedTime.getStatisticValues().getSum(), 0d);
+        MetricDatum count = requests.get(1).getMetricData().get(1);
+        assertEquals("Count9", count.getMetricName());
+        assertEquals("AutoScalingGroupName", count.getDimensions().get(0).getName());
+        assertEquals(1d, count.getValue(), 0d);
+        assertEquals(2, instance.getPublishPolicy().getPublishedCount());
+    }
+
+    /**
+     * Test of run method, of class ElapsedTimeAggregator, suppressing idle
+     * periods.
+     */
+    @Test
+    public void testRunSuppressIdle() {
+        logger.info("runSuppressIdle");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", "TEST", ec2Client, cloudWatchClient);
+        instance.setPublishPolicy(new PublishPolicy(3, 3));
+        CountCollector excludedCollector = new CountCollector("ExcludedRequests");
+        instance.addCollector(excludedCollector);
+        instance.aggregate(10);
+        for (int i = 0; i < 5; i++) {
+            // excluded requests such as health checks are not activity
+            excludedCollector.increment();
+            instance.run();
+        }
+        ArgumentCaptor<PutMetricDataRequest> captor = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+        verify(cloudWatchClient, times(3)).putMetricData(captor.capture());
+        assertEquals(3, instance.getPublishPolicy().getPublishedCount());
+        assertEquals(2, instance.getPublishPolicy().getSuppressedCount());
+
+        // the heartbeat carries the counts of the suppressed periods
+        double excluded = 0;
+        for (PutMetricDataRequest request : captor.getAllValues()) {
+            for (MetricDatum metricDatum : request.getMetricData()) {
+                if ("ExcludedRequests".equals(metricDatum.getMetricName())
+                        && "InstanceId".equals(metricDatum.getDimensions().get(0).getName())) {
+                    excluded += metricDatum.getValue();
+                }
+            }
+        }
+        assertEquals(5d, excluded, 0d);
+        assertEquals(5, excludedCollector.getTotal());
+    }
+
+    /**
+     * Test of run method, of class ElapsedTimeAggregator, spooling data when
+     * Cloud Watch is unreachable and sending it once it is reachable.
+     * @throws IOException
+     */
+    @Test
+    public void testRunWithSpool() throws IOException {
+        logger.info("runWithSpool");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        when(ec2Client.describeTags(any(DescribeTagsRequest.class))).
+                thenReturn(new DescribeTagsResult());
+        ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", null, ec2Client, cloudWatchClient);
+        File file = File.createTempFile("cloudwatch-valve", ".spool");
+        file.delete();
+        MetricSpool spool = new MetricSpool(file, MetricSpool.DEFAULT_SIZE);
+        instance.setSpool(spool);
+        try {
+            doThrow(new AmazonClientException("unreachable")).
+                    when(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+            instance.aggregate(10);
+            instance.run();
+            instance.aggregate(20);
+            instance.spool();
+
+            List<MetricDatum> spooled = spool.read();
+            assertEquals(2, spooled.size());
+            assertEquals(10d, spooled.get(0).getStatisticValues().getSum(), 0d);
+            assertEquals(20d, spooled.get(1).getStatisticValues().getSum(), 0d);
+
+            reset(cloudWatchClient);
+            instance.run();
+
+            ArgumentCaptor<PutMetricDataRequest> captor = ArgumentCaptor.forClass(PutMetricDataRequest.class);
+            verify(cloudWatchClient).putMetricData(captor.capture());
+            List<MetricDatum> sent = captor.getValue().getMetricData();
+            assertEquals(3, sent.size());
+            assertEquals(spooled.get(0), sent.get(0));
+            assertEquals(spooled.get(1), sent.get(1));
+            assertEquals(0d, sent.get(2).getValue(), 0d);
+            assertTrue(spool.isEmpty());
+        } finally {
+            spool.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test of run method, of class ElapsedTimeAggregator, keeping data
+     * refused for expired credentials and dropping data rejected as invalid.
+     * @throws IOException
+     */
+    @Test
+    public void testRunWithRejectedData() throws IOException {
+        logger.info("runWithRejectedData");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        when(ec2Client.describeTags(any(DescribeTagsRequest.class))).
+                thenReturn(new DescribeTagsResult());
+        ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", null, ec2Client, cloudWatchClient);
+        File file = File.createTempFile("cloudwatch-valve", ".spool");
+        file.delete();
+        MetricSpool spool = new MetricSpool(file, MetricSpool.DEFAULT_SIZE);
+        instance.setSpool(spool);
+        try {
+            doThrow(clientError("ExpiredToken")).
+                    when(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+            instance.aggregate(10);
+            instance.run();
+            assertEquals(1, spool.read().size());
+
+            reset(cloudWatchClient);
+            doThrow(clientError("InvalidParameterValue")).
+                    when(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+            instance.run();
+            verify(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+            assertTrue(spool.isEmpty());
+        } finally {
+            spool.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test of spool method, of class ElapsedTimeAggregator, waiting for a
+     * run in progress.
+     * @throws Exception
+     */
+    @Test
+    public void testSpoolWaitsForRun() throws Exception {
+        logger.info("spoolWaitsForRun");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        when(ec2Client.describeTags(any(DescribeTagsRequest.class))).
+                thenReturn(new DescribeTagsResult());
+        final ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", null, ec2Client, cloudWatchClient);
+        File file = File.createTempFile("cloudwatch-valve", ".spool");
+        file.delete();
+        MetricSpool spool = new MetricSpool(file, MetricSpool.DEFAULT_SIZE);
+        instance.setSpool(spool);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                sending.countDown();
+                release.await();
+                throw new AmazonClientException("unreachable");
+            }
+        }).when(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+        try {
+            instance.aggregate(10);
+            Thread run = new Thread(instance);
+            run.start();
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+            instance.aggregate(20);
+            Thread stop = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    instance.spool();
+                }
+            });
+            stop.start();
+            stop.join(200);
+            assertTrue(stop.isAlive());
+
+            release.countDown();
+            run.join(5000);
+            stop.join(5000);
+            assertFalse(stop.isAlive());
+
+            // both the unsent and the final period are kept
+            List<MetricDatum> spooled = spool.read();
+            assertEquals(2, spooled.size());
+            assertEquals(10d, spooled.get(0).getStatisticValues().getSum(), 0d);
+            assertEquals(20d, spooled.get(1).getStatisticValues().getSum(), 0d);
+        } finally {
+            spool.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test of run method, of class ElapsedTimeAggregator, when a collector
+     * throws.
+     */
+    @Test
+    public void testRunWithFailingCollector() {
+        logger.info("runWithFailingCollector");
+        AmazonEC2 ec2Client = mock(AmazonEC2.class);
+        AmazonCloudWatch cloudWatchClient = mock(AmazonCloudWatch.class);
+        when(ec2Client.describeTags(any(DescribeTagsRequest.class))).
+                thenReturn(new DescribeTagsResult());
+        ElapsedTimeAggregator instance = new ElapsedTimeAggregator("TEST",
+                Region.getRegion(Regions.US_WEST_1), "i-500f6ca6", null, ec2Client, cloudWatchClient);
+        MetricCollector collector = mock(MetricCollector.class);
+        when(collector.collect(anyListOf(Dimension.class), anyListOf(MetricDatum.class))).
+                thenThrow(new IllegalStateException("undeployed")).
+                thenReturn(false);
+        instance.addCollector(collector);
+
+        // the failure is logged rather than thrown to the executor
+        instance.run();
+        verify(cloudWatchClient, never()).putMetricData(any(PutMetricDataRequest.class));
+        instance.run();
+        verify(cloudWatchClient).putMetricData(any(PutMetricDataRequest.class));
+    }
+
+    private static AmazonServiceException clientError(String errorCode) {
+        AmazonServiceException ex = new AmazonServiceException(errorCode);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setErrorCode(errorCode);
+        return ex;
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A local HTTP server that accepts PutMetricData requests of the Cloud Watch
+ * query API and records the MetricData members. The AWS SDK is pointed at it
+ * by setting the endpoint of the client to getEndpoint().
+ * @author web-online
+ */
+public class FakeCloudWatchServer {
+
+    private static final String RESPONSE =
+            "<PutMetricDataResponse xmlns=\"http://monitoring.amazonaws.com/doc/2010-08-01/\">" +
+                "<ResponseMetadata><RequestId>fake</RequestId></ResponseMetadata>" +
+            "</PutMetricDataResponse>";
+
+    private final HttpServer server;
+
+    /**
+     * MetricData members received, keyed by the name of the parameter after
+     * the MetricData.member.N. prefix
+     */
+    private final List<Map<String, String>> metricData = new ArrayList<Map<String, String>>();
+
+    /**
+     * number of PutMetricData requests received
+     */
+    private int requestCount = 0;
+
+    /**
+     * Start the server on an ephemeral port.
+     * @throws IOException if the server cannot be started
+     */
+    public FakeCloudWatchServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                putMetricData(read(exchange.getRequestBody()));
+                byte[] response = RESPONSE.getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "text/xml");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return the endpoint to configure the Cloud Watch client with
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Forget everything received so far.
+     */
+    public synchronized void reset() {
+        metricData.clear();
+        requestCount = 0;
+    }
+
+    /**
+     * @return number of PutMetricData requests received
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return copies of the MetricData members received
+     */
+    public synchronized List<Map<String, String>> getMetricData() {
+        List<Map<String, String>> copy = new ArrayList<Map<String, String>>();
+        for (Map<String, String> member : metricData) {
+            copy.add(new TreeMap<String, String>(member));
+        }
+        return copy;
+    }
+
+    /**
+     * Sum a field of the MetricData members received for a metric and the
+     * first dimension name.
+     * @param metricName metric name to match
+     * @param dimensionName name of the first dimension to match
+     * @param field field to sum, such as StatisticValues.SampleCount
+     * @return the sum of the field
+     */
+    public synchronized double total(String metricName, String dimensionName, String field) {
+        double total = 0;
+        for (Map<String, String> member : metricData) {
+            if (metricName.equals(member.get("MetricName"))
+                    && dimensionName.equals(member.get("Dimensions.member.1.Name"))
+                    && member.containsKey(field)) {
+                total += Double.parseDouble(member.get(field));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Record the MetricData members of a form encoded request body.
+     */
+    private synchronized void putMetricData(String body) throws IOException {
+        Map<Integer, Map<String, String>> members = new TreeMap<Integer, Map<String, String>>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(pair.substring(0, eq), "UTF-8");
+            String value = URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            if (name.startsWith("MetricData.member.")) {
+                String rest = name.substring("MetricData.member.".length());
+                int dot = rest.indexOf('.');
+                Integer index = Integer.valueOf(rest.substring(0, dot));
+                Map<String, String> member = members.get(index);
+                if (member == null) {
+                    member = new TreeMap<String, String>();
+                    members.put(index, member);
+                }
+                member.put(rest.substring(dot + 1), value);
+            }
+        }
+        metricData.addAll(members.values());
+        requestCount++;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
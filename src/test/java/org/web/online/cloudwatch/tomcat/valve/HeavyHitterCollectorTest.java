@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in HeavyHitterCollector
+ * @author web-online
+ */
+public class HeavyHitterCollectorTest {
+
+    private static final Logger logger = Logger.getLogger("HeavyHitterCollectorTest");
+
+    private final List<Dimension> dimensions = Collections.singletonList(
+            new Dimension().withName("InstanceId").withValue("i-500f6ca6"));
+
+    /**
+     * Test of collect method, of class HeavyHitterCollector, with a few
+     * heavy clients among many light ones.
+     */
+    @Test
+    public void testCollect() {
+        logger.info("collect");
+        HeavyHitterCollector instance = new HeavyHitterCollector(2,
+                HeavyHitterCollector.DEFAULT_MINIMUM_COUNT, HeavyHitterCollector.DEFAULT_MINIMUM_SHARE, 256, 4);
+        // 10000 light clients making one request each, interleaved with
+        // two heavy clients making 3000 and 1000 requests
+        for (int i = 0; i < 10000; i++) {
+            instance.record("10.0.0." + i, 1);
+            if (i % 10 < 3) {
+                instance.record("heavy-1", 100);
+            }
+            if (i % 10 == 0) {
+                instance.record("heavy-2", 200);
+            }
+        }
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertTrue(instance.collect(dimensions, metricData));
+        assertEquals(4, metricData.size());
+
+        MetricDatum share = find(metricData, "ClientRequestShare", "heavy-1");
+        assertEquals("InstanceId", share.getDimensions().get(0).getName());
+        // 3000 of 14000 requests, overestimated by at most the sketch error
+        assertEquals(100d * 3000 / 14000, share.getValue(), 100d * 14000 * Math.E / 256 / 14000);
+        MetricDatum elapsedTime = find(metricData, "ClientElapsedTime", "heavy-1");
+        assertEquals(100d, elapsedTime.getStatisticValues().getMinimum(), 0d);
+        assertEquals(100d, elapsedTime.getStatisticValues().getMaximum(), 0d);
+        assertNotNull(find(metricData, "ClientRequestShare", "heavy-2"));
+
+        // the next period starts empty
+        metricData.clear();
+        assertFalse(instance.collect(dimensions, metricData));
+        assertEquals(0, metricData.size());
+    }
+
+    /**
+     * Test of collect method, of class HeavyHitterCollector, with clients
+     * below the minimum count or share.
+     */
+    @Test
+    public void testCollectMinimum() {
+        logger.info("collectMinimum");
+        HeavyHitterCollector instance = new HeavyHitterCollector(3, 100, 1d, 256, 4);
+        // 99 requests is below the minimum count, 100 of 20000 is below the
+        // minimum share
+        for (int i = 0; i < 99; i++) {
+            instance.record("few", 1);
+        }
+        for (int i = 0; i < 19901; i++) {
+            instance.record("heavy", 1);
+        }
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertTrue(instance.collect(dimensions, metricData));
+        assertEquals(2, metricData.size());
+        assertNotNull(find(metricData, "ClientRequestShare", "heavy"));
+
+        instance = new HeavyHitterCollector(3, 100, 1d, 256, 4);
+        for (int i = 0; i < 100; i++) {
+            instance.record("small", 1);
+        }
+        for (int i = 0; i < 19900; i++) {
+            instance.record("heavy", 1);
+        }
+        metricData.clear();
+        assertTrue(instance.collect(dimensions, metricData));
+        assertEquals(2, metricData.size());
+        assertNotNull(find(metricData, "ClientRequestShare", "heavy"));
+    }
+
+    /**
+     * Test of client method, of class HeavyHitterCollector.
+     */
+    @Test
+    public void testClient() {
+        logger.info("client");
+        assertEquals("api-key", HeavyHitterCollector.client(" api-key "));
+        // missing, empty and non-ASCII values are not clients
+        assertNull(HeavyHitterCollector.client(null));
+        assertNull(HeavyHitterCollector.client(""));
+        assertNull(HeavyHitterCollector.client("   "));
+        assertNull(HeavyHitterCollector.client("caf\u00e9"));
+        assertNull(HeavyHitterCollector.client("a\tb"));
+
+        // over-long values are capped
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append('x');
+        }
+        String client = HeavyHitterCollector.client(sb.toString());
+        assertEquals(HeavyHitterCollector.MAX_CLIENT_LENGTH, client.length());
+        assertEquals(sb.substring(0, HeavyHitterCollector.MAX_CLIENT_LENGTH), client);
+    }
+
+    /**
+     * Test of collect method, of class HeavyHitterCollector, pushing a hash
+     * of secret clients.
+     */
+    @Test
+    public void testCollectSecret() {
+        logger.info("collectSecret");
+        HeavyHitterCollector instance = new HeavyHitterCollector(2, 1, 0d, 256, 4);
+        for (int i = 0; i < 10; i++) {
+            instance.record("secret-key", true, 1);
+            instance.record("10.0.0.1", false, 1);
+        }
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertTrue(instance.collect(dimensions, metricData));
+        assertEquals(4, metricData.size());
+        assertNotNull(find(metricData, "ClientRequestShare", "10.0.0.1"));
+        String hashed = null;
+        for (MetricDatum metricDatum : metricData) {
+            String client = metricDatum.getDimensions().get(1).getValue();
+            assertFalse(client.contains("secret"));
+            if (!"10.0.0.1".equals(client)) {
+                hashed = client;
+            }
+        }
+        assertTrue(hashed.startsWith("sha256:"));
+        assertEquals("sha256:".length() + 16, hashed.length());
+
+        // the hash is stable across periods
+        for (int i = 0; i < 10; i++) {
+            instance.record("secret-key", true, 1);
+        }
+        metricData.clear();
+        instance.collect(dimensions, metricData);
+        assertNotNull(find(metricData, "ClientRequestShare", hashed));
+    }
+
+    /**
+     * Test of collect method, of class HeavyHitterCollector, with clients
+     * that have the same String hashCode.
+     */
+    @Test
+    public void testCollectHashCodeCollision() {
+        logger.info("collectHashCodeCollision");
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        HeavyHitterCollector instance = new HeavyHitterCollector(2, 1, 0d, 256, 4);
+        for (int i = 0; i < 500; i++) {
+            instance.record("Aa", 1);
+            instance.record("BB", 1);
+        }
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertTrue(instance.collect(dimensions, metricData));
+        // each is half of the requests, not the sum of both
+        assertEquals(50d, find(metricData, "ClientRequestShare", "Aa").getValue(), 0d);
+        assertEquals(50d, find(metricData, "ClientRequestShare", "BB").getValue(), 0d);
+    }
+
+    private static MetricDatum find(List<MetricDatum> metricData, String metricName, String client) {
+        for (MetricDatum metricDatum : metricData) {
+            if (metricName.equals(metricDatum.getMetricName())
+                    && client.equals(metricDatum.getDimensions().get(1).getValue())) {
+                return metricDatum;
+            }
+        }
+        fail("no " + metricName + " for " + client + " in " + metricData);
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in LocalStatistics
+ * @author web-online
+ */
+public class LocalStatisticsTest {
+
+    private static final Logger logger = Logger.getLogger("LocalStatisticsTest");
+
+    private final long[] now = {0};
+
+    private final LocalStatistics instance = new LocalStatistics() {
+        @Override
+        protected long nanoTime() {
+            return now[0];
+        }
+    };
+
+    private void advanceSeconds(long seconds) {
+        now[0] += TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Test of the rates and elapsed times with a steady load.
+     */
+    @Test
+    public void testSteadyLoad() {
+        logger.info("steadyLoad");
+        // 10 requests per second of 20ms each for 15 minutes
+        for (int second = 0; second < 15 * 60; second++) {
+            for (int i = 0; i < 10; i++) {
+                instance.update(20);
+            }
+            advanceSeconds(1);
+        }
+        assertEquals(9000, instance.getCount());
+        assertEquals(10d, instance.getOneMinuteRate(), 0.01);
+        assertEquals(10d, instance.getFiveMinuteRate(), 0.01);
+        assertEquals(10d, instance.getFifteenMinuteRate(), 0.01);
+        assertEquals(20d, instance.getOneMinuteElapsedTime(), 0.01);
+        assertEquals(20d, instance.getFifteenMinuteElapsedTime(), 0.01);
+    }
+
+    /**
+     * Test of the rates and elapsed times decaying after load stops.
+     */
+    @Test
+    public void testDecay() {
+        logger.info("decay");
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 10; i++) {
+                instance.update(20);
+            }
+            advanceSeconds(1);
+        }
+        for (int i = 0; i < 10; i++) {
+            instance.update(200);
+        }
+        advanceSeconds(60);
+
+        // one minute later the one minute rate has decayed by a factor of e
+        assertTrue(instance.getFiveMinuteRate() > instance.getOneMinuteRate());
+        assertEquals(0.368, instance.getOneMinuteRate() / 10, 0.05);
+        // the slow requests weigh more in the shorter window
+        assertTrue(instance.getOneMinuteElapsedTime() > instance.getFiveMinuteElapsedTime());
+        assertTrue(instance.getFiveMinuteElapsedTime() > 20);
+    }
+
+    /**
+     * Test of the rates and elapsed times with no requests.
+     */
+    @Test
+    public void testNoRequests() {
+        logger.info("noRequests");
+        advanceSeconds(60);
+        assertEquals(0, instance.getCount());
+        assertEquals(0d, instance.getOneMinuteRate(), 0d);
+        assertEquals(0d, instance.getOneMinuteElapsedTime(), 0d);
+    }
+
+    /**
+     * Test of the rates and elapsed times read once after an idle stretch
+     * matching those read every tick.
+     */
+    @Test
+    public void testIdleStretch() {
+        logger.info("idleStretch");
+        LocalStatistics polled = new LocalStatistics() {
+            @Override
+            protected long nanoTime() {
+                return now[0];
+            }
+        };
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 10; i++) {
+                instance.update(20);
+                polled.update(20);
+            }
+            advanceSeconds(1);
+        }
+        for (int tick = 0; tick < 120; tick++) {
+            advanceSeconds(5);
+            polled.getOneMinuteRate();
+        }
+        assertEquals(polled.getOneMinuteRate(), instance.getOneMinuteRate(), 1e-12);
+        assertEquals(polled.getFifteenMinuteRate(), instance.getFifteenMinuteRate(), 1e-12);
+        assertEquals(polled.getFifteenMinuteElapsedTime(), instance.getFifteenMinuteElapsedTime(), 1e-9);
+        assertTrue(instance.getFifteenMinuteRate() > 0);
+
+        // a day later the rates have decayed away
+        advanceSeconds(TimeUnit.DAYS.toSeconds(1));
+        assertEquals(0d, instance.getFifteenMinuteRate(), 1e-12);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in MetricSpool
+ * @author web-online
+ */
+public class MetricSpoolTest {
+
+    private static final Logger logger = Logger.getLogger("MetricSpoolTest");
+
+    private File file;
+
+    @Before
+    public void beforeTest() throws IOException {
+        file = File.createTempFile("cloudwatch-valve", ".spool");
+        file.delete();
+    }
+
+    @After
+    public void afterTest() {
+        file.delete();
+    }
+
+    private static MetricDatum valueDatum(long timestamp, double value) {
+        return new MetricDatum().
+                withMetricName("ExcludedRequests").
+                withDimensions(new Dimension().withName("InstanceId").withValue("i-500f6ca6")).
+                withValue(value).
+                withUnit(StandardUnit.Count).
+                withTimestamp(new Date(timestamp));
+    }
+
+    private static MetricDatum statisticDatum(long timestamp) {
+        return new MetricDatum().
+                withMetricName("ElapsedTime").
+                withDimensions(new Dimension().withName("AutoScalingGroupName").withValue("TEST")).
+                withStatisticValues(new StatisticSet().
+                        withSampleCount(3d).withSum(60d).withMinimum(10d).withMaximum(30d)).
+                withUnit(StandardUnit.Milliseconds).
+                withTimestamp(new Date(timestamp));
+    }
+
+    /**
+     * Test of append and read methods, of class MetricSpool, across reopening
+     * the spool file.
+     * @throws IOException
+     */
+    @Test
+    public void testAppendAndRead() throws IOException {
+        logger.info("appendAndRead");
+        MetricSpool instance = new MetricSpool(file, 4096);
+        assertTrue(instance.isEmpty());
+        assertEquals(0, instance.append(Arrays.asList(valueDatum(3000, 7), statisticDatum(3000))));
+        assertEquals(0, instance.append(Arrays.asList(valueDatum(1000, 5), statisticDatum(2000))));
+        instance.close();
+
+        instance = new MetricSpool(file, 4096);
+        assertFalse(instance.isEmpty());
+        List<MetricDatum> metricData = instance.read();
+        assertEquals(Arrays.asList(valueDatum(3000, 7), statisticDatum(3000),
+                valueDatum(1000, 5), statisticDatum(2000)), metricData);
+
+        instance.clear();
+        assertTrue(instance.isEmpty());
+        assertTrue(instance.read().isEmpty());
+        instance.close();
+    }
+
+    /**
+     * Test of append method, of class MetricSpool, when the spool is full,
+     * dropping the oldest data.
+     * @throws IOException
+     */
+    @Test
+    public void testAppendFull() throws IOException {
+        logger.info("appendFull");
+        MetricSpool instance = new MetricSpool(file, 256);
+        int dropped = 0;
+        for (int i = 0; i < 20; i++) {
+            dropped += instance.append(Arrays.asList(valueDatum(i, i)));
+        }
+        List<MetricDatum> metricData = instance.read();
+        assertTrue(metricData.size() > 0);
+        assertEquals(20, metricData.size() + dropped);
+        assertEquals(dropped, instance.getDroppedCount());
+        assertEquals(256, file.length());
+        // the newest data is kept, in order, across wrapping around
+        for (int i = 0; i < metricData.size(); i++) {
+            assertEquals(valueDatum(dropped + i, dropped + i), metricData.get(i));
+        }
+        instance.close();
+
+        instance = new MetricSpool(file, 256);
+        assertEquals(metricData, instance.read());
+        instance.close();
+    }
+
+    /**
+     * Test of remove method, of class MetricSpool.
+     * @throws IOException
+     */
+    @Test
+    public void testRemove() throws IOException {
+        logger.info("remove");
+        MetricSpool instance = new MetricSpool(file, 4096);
+        instance.append(Arrays.asList(valueDatum(1000, 5), statisticDatum(2000), valueDatum(3000, 7)));
+        instance.remove(2);
+        assertEquals(Arrays.asList(valueDatum(3000, 7)), instance.read());
+        instance.append(Arrays.asList(valueDatum(4000, 9)));
+        assertEquals(Arrays.asList(valueDatum(3000, 7), valueDatum(4000, 9)), instance.read());
+
+        instance.remove(5);
+        assertTrue(instance.isEmpty());
+        instance.close();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in MetricsEndpoint
+ * @author web-online
+ */
+public class MetricsEndpointTest {
+
+    private static final Logger logger = Logger.getLogger("MetricsEndpointTest");
+
+    private final LocalStatistics localStatistics = new LocalStatistics();
+    private final ElapsedTimeHistogram histogram = new ElapsedTimeHistogram();
+    private final PublishPolicy publishPolicy = new PublishPolicy();
+    private final CountCollector excludedCollector = new CountCollector("ExcludedRequests");
+
+    private void update(long value) {
+        localStatistics.update(value);
+        histogram.update(value);
+    }
+
+    /**
+     * Test of render method, of class MetricsEndpoint.
+     * @throws Exception
+     */
+    @Test
+    public void testRender() throws Exception {
+        logger.info("render");
+        MetricsEndpoint instance = new MetricsEndpoint(0, localStatistics, histogram,
+                publishPolicy, excludedCollector);
+        update(3);
+        update(5);
+        update(7);
+        update(20000);
+        excludedCollector.increment();
+        publishPolicy.published(2);
+
+        String text = new String(instance.render(), "US-ASCII");
+        assertTrue(text.contains("# TYPE cloudwatch_valve_requests_total counter\ncloudwatch_valve_requests_total 4\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_excluded_requests_total 1\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_cloudwatch_calls_total 2\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_cloudwatch_calls_suppressed_total 0\n"));
+        assertTrue(text.contains("# TYPE cloudwatch_valve_elapsed_time_milliseconds histogram\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_bucket{le=\"5\"} 2\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_bucket{le=\"10\"} 3\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_bucket{le=\"10000\"} 3\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_bucket{le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_sum 20015\n"));
+        assertTrue(text.contains("\ncloudwatch_valve_elapsed_time_milliseconds_count 4\n"));
+        assertTrue(text.contains("# TYPE cloudwatch_valve_one_minute_rate gauge\n"));
+        assertTrue(text.endsWith("\n"));
+    }
+
+    /**
+     * Test of render method, of class MetricsEndpoint, reusing the rendered
+     * text within the scrape interval.
+     */
+    @Test
+    public void testRenderCached() {
+        logger.info("renderCached");
+        MetricsEndpoint instance = new MetricsEndpoint(60000, localStatistics, histogram,
+                publishPolicy, null);
+        byte[] first = instance.render();
+        update(3);
+        assertSame(first, instance.render());
+        assertFalse(new String(first).contains("excluded_requests_total"));
+
+        instance = new MetricsEndpoint(0, localStatistics, histogram, publishPolicy, null);
+        first = instance.render();
+        assertNotSame(first, instance.render());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in PublishPolicy
+ * @author web-online
+ */
+public class PublishPolicyTest {
+
+    private static final Logger logger = Logger.getLogger("PublishPolicyTest");
+
+    /**
+     * Test of idle method, of class PublishPolicy, using the defaults.
+     */
+    @Test
+    public void testIdleDefault() {
+        logger.info("idleDefault");
+        PublishPolicy instance = new PublishPolicy();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(instance.idle());
+        }
+    }
+
+    /**
+     * Test of idle method, of class PublishPolicy, with a backoff.
+     */
+    @Test
+    public void testIdleBackoff() {
+        logger.info("idleBackoff");
+        PublishPolicy instance = new PublishPolicy(2, 5);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            sb.append(instance.idle() ? 'P' : '-');
+        }
+        // first idle period, then after 2, 4, 5 and 5 idle periods
+        assertEquals("P-P---P----P----", sb.toString());
+
+        instance.active();
+        sb.setLength(0);
+        for (int i = 0; i < 4; i++) {
+            sb.append(instance.idle() ? 'P' : '-');
+        }
+        assertEquals("P-P-", sb.toString());
+    }
+
+    /**
+     * Test of constructor, of class PublishPolicy, with bad values.
+     */
+    @Test
+    public void testConstructorBadValues() {
+        logger.info("constructorBadValues");
+        try {
+            new PublishPolicy(0, 1);
+            fail("should've thrown an exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("heartbeatPeriods (0) must be at least 1", ex.getMessage());
+        }
+        try {
+            new PublishPolicy(2, 1);
+            fail("should've thrown an exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("maxHeartbeatPeriods (1) must be at least heartbeatPeriods (2)", ex.getMessage());
+        }
+    }
+}
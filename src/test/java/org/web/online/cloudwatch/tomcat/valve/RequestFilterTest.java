@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import java.util.logging.Logger;
+import org.apache.coyote.Request;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for functionality in RequestFilter
+ * @author web-online
+ */
+public class RequestFilterTest {
+
+    private static final Logger logger = Logger.getLogger("RequestFilterTest");
+
+    private final RequestFilter excludeFilter = new RequestFilter(
+            new RequestFilter.Rules(null, null, null, null),
+            new RequestFilter.Rules("/health, /status/", "css,.PNG", "HEAD", "ELB-HealthChecker"));
+
+    private final RequestFilter includeFilter = new RequestFilter(
+            new RequestFilter.Rules("/api/", null, null, null),
+            new RequestFilter.Rules(null, "json", null, null));
+
+    /**
+     * Create a request with the uri as chars, the method as bytes and an
+     * optional User-Agent header as a String.
+     */
+    private static Request request(String method, String uri, String userAgent) {
+        Request request = new Request();
+        request.decodedURI().setChars(uri.toCharArray(), 0, uri.length());
+        byte[] methodBytes = method.getBytes();
+        request.method().setBytes(methodBytes, 0, methodBytes.length);
+        if (userAgent != null) {
+            request.getMimeHeaders().addValue("User-Agent").setString(userAgent);
+        }
+        return request;
+    }
+
+    /**
+     * Test of accept method, of class RequestFilter, with no rules.
+     */
+    @Test
+    public void testAcceptNoRules() {
+        logger.info("acceptNoRules");
+        RequestFilter instance = new RequestFilter(
+                new RequestFilter.Rules(null, "", null, null),
+                new RequestFilter.Rules(" , ", null, null, null));
+        assertTrue(instance.accept(request("GET", "/", null)));
+        assertTrue(instance.accept(request("GET", "", null)));
+    }
+
+    /**
+     * Test of accept method, of class RequestFilter, with exclude rules.
+     */
+    @Test
+    public void testAcceptExclude() {
+        logger.info("acceptExclude");
+        assertTrue(excludeFilter.accept(request("GET", "/index.html", "Mozilla/5.0")));
+        assertTrue(excludeFilter.accept(request("GET", "/healt", null)));
+        assertTrue(excludeFilter.accept(request("GET", "/status", null)));
+        assertTrue(excludeFilter.accept(request("GET", "/site.css/page", null)));
+        assertTrue(excludeFilter.accept(request("GET", "/sitecss", null)));
+        assertTrue(excludeFilter.accept(request("HEADER", "/", null)));
+        assertTrue(excludeFilter.accept(request("GET", "/", "Mozilla/5.0 ELB-HealthChecker")));
+
+        assertFalse(excludeFilter.accept(request("GET", "/health", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/healthz", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/status/db", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/css/site.css", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/images/logo.png", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/images/logo.Png", null)));
+        assertFalse(excludeFilter.accept(request("HEAD", "/", null)));
+        assertFalse(excludeFilter.accept(request("GET", "/", "ELB-HealthChecker/2.0")));
+    }
+
+    /**
+     * Test of accept method, of class RequestFilter, with include rules.
+     */
+    @Test
+    public void testAcceptInclude() {
+        logger.info("acceptInclude");
+        assertTrue(includeFilter.accept(request("GET", "/api/users", null)));
+        assertFalse(includeFilter.accept(request("GET", "/api/users.json", null)));
+        assertFalse(includeFilter.accept(request("GET", "/index.html", null)));
+    }
+
+    /**
+     * Test of accept method, of class RequestFilter, with each MessageBytes
+     * representation of the decoded URI.
+     */
+    @Test
+    public void testAcceptMessageBytesTypes() {
+        logger.info("acceptMessageBytesTypes");
+        Request request = request("GET", "/", null);
+        byte[] uri = "xx/health".getBytes();
+        request.decodedURI().setBytes(uri, 2, uri.length - 2);
+        assertFalse(excludeFilter.accept(request));
+        request.decodedURI().setString("/health");
+        assertFalse(excludeFilter.accept(request));
+        char[] chars = "/health".toCharArray();
+        request.decodedURI().setChars(chars, 1, chars.length - 1);
+        assertTrue(excludeFilter.accept(request));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.web.online.cloudwatch.tomcat.valve;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Engine;
+import org.apache.catalina.Host;
+import org.apache.catalina.Manager;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for functionality in SessionCollector
+ * @author web-online
+ */
+public class SessionCollectorTest {
+
+    private static final Logger logger = Logger.getLogger("SessionCollectorTest");
+
+    private final List<Dimension> dimensions = Collections.singletonList(
+            new Dimension().withName("InstanceId").withValue("i-500f6ca6"));
+
+    private static Context context(String path, Manager manager) {
+        Context context = mock(Context.class);
+        when(context.getPath()).thenReturn(path);
+        when(context.getManager()).thenReturn(manager);
+        return context;
+    }
+
+    private static double value(List<MetricDatum> metricData, String metricName, String contextPath) {
+        for (MetricDatum metricDatum : metricData) {
+            if (metricName.equals(metricDatum.getMetricName())
+                    && contextPath.equals(metricDatum.getDimensions().get(1).getValue())) {
+                return metricDatum.getValue();
+            }
+        }
+        fail("no " + metricName + " for " + contextPath + " in " + metricData);
+        return 0;
+    }
+
+    /**
+     * Test of collect method, of class SessionCollector, for the Contexts of
+     * a Host.
+     */
+    @Test
+    public void testCollect() {
+        logger.info("collect");
+        Manager manager = mock(Manager.class);
+        when(manager.getActiveSessions()).thenReturn(5);
+        when(manager.getSessionCounter()).thenReturn(100L, 130L);
+        when(manager.getExpiredSessions()).thenReturn(90L, 95L);
+        when(manager.getRejectedSessions()).thenReturn(0, 2);
+        when(manager.getSessionAverageAliveTime()).thenReturn(600);
+
+        Container[] contexts = {context("", manager), context("/nomanager", null)};
+        Host host = mock(Host.class);
+        when(host.findChildren()).thenReturn(contexts);
+
+        SessionCollector instance = new SessionCollector(host);
+
+        // the first period is the baseline
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertFalse(instance.collect(dimensions, metricData));
+        assertEquals(5, metricData.size());
+        assertEquals("InstanceId", metricData.get(0).getDimensions().get(0).getName());
+        assertEquals(5d, value(metricData, "ActiveSessions", "/"), 0d);
+        assertEquals(0d, value(metricData, "SessionsCreated", "/"), 0d);
+
+        metricData.clear();
+        assertTrue(instance.collect(dimensions, metricData));
+        assertEquals(30d, value(metricData, "SessionsCreated", "/"), 0d);
+        assertEquals(5d, value(metricData, "SessionsExpired", "/"), 0d);
+        assertEquals(2d, value(metricData, "SessionsRejected", "/"), 0d);
+        assertEquals(600d, value(metricData, "SessionAverageAliveTime", "/"), 0d);
+        assertEquals("Seconds", metricData.get(4).getUnit());
+    }
+
+    /**
+     * Test of collect method, of class SessionCollector, for an idle Context.
+     */
+    @Test
+    public void testCollectIdle() {
+        logger.info("collectIdle");
+        Manager manager = mock(Manager.class);
+        SessionCollector instance = new SessionCollector(context("/app", manager));
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertFalse(instance.collect(dimensions, metricData));
+        assertEquals(0d, value(metricData, "ActiveSessions", "/app"), 0d);
+    }
+
+    /**
+     * Test of collect method, of class SessionCollector, for a Context with
+     * lingering sessions that do not change.
+     */
+    @Test
+    public void testCollectUnchanged() {
+        logger.info("collectUnchanged");
+        Manager manager = mock(Manager.class);
+        when(manager.getActiveSessions()).thenReturn(3, 3, 3, 2);
+        SessionCollector instance = new SessionCollector(context("/app", manager));
+
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        assertFalse(instance.collect(dimensions, metricData));
+        assertFalse(instance.collect(dimensions, metricData));
+        assertFalse(instance.collect(dimensions, metricData));
+        // the unchanged values are still collected for heartbeats
+        assertEquals(15, metricData.size());
+        assertTrue(instance.collect(dimensions, metricData));
+    }
+
+    /**
+     * Test of collect method, of class SessionCollector, for the Contexts of
+     * an Engine with the same path on different Hosts.
+     */
+    @Test
+    public void testCollectEngine() {
+        logger.info("collectEngine");
+        Manager manager = mock(Manager.class);
+        when(manager.getActiveSessions()).thenReturn(5);
+        Manager otherManager = mock(Manager.class);
+        when(otherManager.getActiveSessions()).thenReturn(7);
+
+        Engine engine = mock(Engine.class);
+        Host host = host("www.example.com", context("", manager));
+        Host otherHost = host("api.example.com", context("", otherManager));
+        when(engine.findChildren()).thenReturn(new Container[] {host, otherHost});
+
+        SessionCollector instance = new SessionCollector(engine);
+        List<MetricDatum> metricData = new ArrayList<MetricDatum>();
+        instance.collect(dimensions, metricData);
+        assertEquals(10, metricData.size());
+        assertEquals(Arrays.asList(dimensions.get(0),
+                new Dimension().withName("Context").withValue("/"),
+                new Dimension().withName("Host").withValue("www.example.com")),
+                metricData.get(0).getDimensions());
+        assertEquals(5d, metricData.get(0).getValue(), 0d);
+        assertEquals("api.example.com", metricData.get(5).getDimensions().get(2).getValue());
+        assertEquals(7d, metricData.get(5).getValue(), 0d);
+
+        // below the Engine the Host is implied by the valve
+        metricData.clear();
+        new SessionCollector(host).collect(dimensions, metricData);
+        assertEquals(2, metricData.get(0).getDimensions().size());
+    }
+
+    private static Host host(String name, Context context) {
+        Host host = mock(Host.class);
+        when(host.getName()).thenReturn(name);
+        when(host.findChildren()).thenReturn(new Container[] {context});
+        when(context.getParent()).thenReturn(host);
+        return host;
+    }
+}